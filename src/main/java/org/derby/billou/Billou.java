@@ -3,9 +3,11 @@ package org.derby.billou;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -16,23 +18,126 @@ public class Billou {
 	static boolean hadError = false;
 	static boolean hadRuntimeError = false;
 
+	// runs programs on the bytecode VM instead of the tree-walking interpreter
+	private static boolean useVm = false;
+	// compiles functions to JVM bytecode as they are declared
+	private static boolean useJit = false;
+	// keeps the parsed form of scripts next to them for later runs
+	private static boolean useCache = false;
+	// parses the bodies of top-level functions only once they are called
+	private static boolean useLazy = false;
+
+	// Java stack to give the tree-walking interpreter per Billou call
+	// when the call depth is limited, up to about as much as the JVM
+	// allows a thread; past that, --vm is the way to go deeper. Calls
+	// take more before HotSpot compiles the interpreter, so small
+	// limits get a stack that covers them anyway.
+	private static final long STACK_PER_CALL = 1024;
+	private static final long MIN_STACK = 16L << 20;
+	private static final long MAX_STACK = 1L << 30;
+
+	// scripts at least this big are scanned on a thread of their own,
+	// given a spare core to run it on
+	private static final long PIPELINE_SIZE = 1 << 20;
+
 	private static final Interpreter interpreter = new Interpreter();
+	private static final VM vm = new VM();
 
 	/**
 	 * This is where the entire program starts from
-	 * @param args
+	 * @param args optional backend flags followed by an optional script
 	 * @throws IOException
 	 */
 	public static void main(String[] args) throws IOException {
-		if (args.length > 1) {//if the command line arg is greater than one
-			                  //exit with status of 79
-			System.out.println("Usage: Billou [script]");
-			System.exit(79);
-		} else if (args.length == 1) { //if command line arg is 1 run the file
-			runFile(args[0]);
-		} else {
-			runPrompt(); //else just prompt the user to enter a value
+		int first = 0;
+		int maxDepth = 0;
+		while (first < args.length && args[first].startsWith("--")) {
+			if (args[first].equals("--vm")) { //selects the bytecode VM
+				useVm = true;
+			} else if (args[first].equals("--jit")) { //compiles to JVM bytecode
+				useJit = true;
+				interpreter.enableJit();
+			} else if (args[first].equals("--ssa")) { //optimizes functions in SSA form
+				interpreter.enableSsa(null);
+			} else if (args[first].equals("--dump-ir")) { //prints the SSA passes' work
+				interpreter.enableSsa(System.err);
+			} else if (args[first].equals("--cache")) { //reuses scripts' parsed form
+				useCache = true;
+			} else if (args[first].equals("--lazy")) { //parses function bodies on first call
+				useLazy = true;
+			} else if (args[first].equals("--cache-stats")) { //reports inline cache hit rates
+				PropertyCache.enableStatistics();
+			} else if (args[first].equals("--max-depth") && first + 1 < args.length) { //limits recursion
+				maxDepth = depth(args[++first]);
+				interpreter.setMaxDepth(maxDepth);
+				vm.setMaxDepth(maxDepth);
+			} else {
+				usage();
+			}
+			first++;
+		}
+
+		if (args.length - first > 1) {//if more than one script is given
+			usage();
+		}
+
+		String script = args.length - first == 1 ? args[first] : null;
+		Runnable program = () -> {
+			try {
+				if (script != null) { //if a script is given run the file
+					runFile(script);
+				} else {
+					runPrompt(); //else just prompt the user to enter a value
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+
+		if (maxDepth == 0 || useVm) {
+			program.run();
+			return;
+		}
+
+		// the VM keeps its frames on the heap, but the interpreter
+		// needs a Java stack deep enough for the limit
+		Thread thread = new Thread(null, program, "billou",
+				Math.max(MIN_STACK, Math.min(maxDepth * STACK_PER_CALL, MAX_STACK)));
+		Throwable[] failure = new Throwable[1];
+		thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+
+		// fail the way the program would have on the main thread
+		if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+		if (failure[0] instanceof Error) throw (Error) failure[0];
+	}
+
+	/**
+	 * @return the maximum call depth a --max-depth argument gives
+	 */
+	private static int depth(String arg) {
+		try {
+			int depth = Integer.parseInt(arg);
+			if (depth > 0) return depth;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		usage();
+		return 0;
+	}
+
+	/**
+	 * Prints how to run the program and
+	 * exits with status of 79
+	 */
+	private static void usage() {
+		System.out.println("Usage: Billou [--vm | --jit | --ssa | --dump-ir] [--cache] [--lazy] [--cache-stats] [--max-depth n] [script]");
+		System.exit(79);
 	}
 
 	/**
@@ -41,17 +146,45 @@ public class Billou {
 	 * @throws IOException
 	 */
 	private static void runFile(String path) throws IOException {
-		//picks the file from a specified path and converts it to streams of bytes
-		byte[] bytes = Files.readAllBytes(Paths.get(path));
+		//the script is scanned straight from the file as it is parsed
+		Path script = Paths.get(path);
 
-		//calls the run function which in turn runs the file
-		run(new String(bytes, Charset.defaultCharset()));
+		if (useCache) {
+			// a cached tree already got past every compile error
+			byte[] hash = ScriptCache.hash(script);
+			List<Statement> statements = ScriptCache.load(path, hash);
+			if (statements == null) {
+				statements = compile(scan(script), false);
+				if (statements != null) ScriptCache.store(path, hash, statements);
+			}
+			if (statements != null) execute(statements);
+		} else {
+			// the VM compiles every body before it runs anything, and
+			// the JIT every function's as soon as it is declared
+			List<Statement> statements = compile(scan(script),
+					useLazy && !useVm && !useJit);
+			if (statements != null) execute(statements);
+		}
+		PropertyCache.report(System.err);
 
 		// Indicate an error in the exit code.
 		if (hadError) System.exit(65);
 		if (hadRuntimeError) System.exit(70);
 	}
 
+	/**
+	 * @return the tokens of a script, scanned as the parser asks for
+	 * them or, for a large one, ahead of it
+	 */
+	private static Iterator<Token> scan(Path script) throws IOException {
+		Scanner scanner = new Scanner(script);
+		if (Files.size(script) < PIPELINE_SIZE ||
+				Runtime.getRuntime().availableProcessors() < 2) {
+			return scanner;
+		}
+		return new TokenPipeline(scanner);
+	}
+
 	/**
 	 * This function prompts the user to enter an
 	 * expression to be evaluated
@@ -81,21 +214,52 @@ public class Billou {
 	 * @param source is the data or expression to be evaluated
 	 */
 	private static void run(String source) {
+		List<Statement> statements = compile(new Scanner(source), false);
+		if (statements != null) execute(statements);
+	}
 
-		//The scanner object will be used to scan the source
-		Scanner scanner = new Scanner(source);
-
-		//It then breaks it to respective tokens
-		List<Token> tokens = scanner.scanTokens();
+	/**
+	 * Takes source through the front end
+	 * @param lazy whether to leave top-level function bodies until
+	 * they are called
+	 * @return the resolved and optimized statements, or null if
+	 * there was a compile error
+	 */
+	private static List<Statement> compile(Iterator<Token> tokens, boolean lazy) {
 
-		//This is an object of a parser
-		Parser parser = new Parser(tokens);
+		//This is an object of a parser, which pulls the tokens the
+		//scanner breaks the source into as it needs them
+		Parser parser = new Parser(tokens, lazy);
 
 		//produces a syntax tree
 		List<Statement> statements = parser.parse();
 
 		// Stop if there was a syntax error.
-		if (hadError) return;
+		if (hadError) return null;
+
+		//assigns every local variable its scope depth and slot
+		Resolver resolver = new Resolver();
+		resolver.resolve(statements);
+
+		// Stop if there was a resolution error.
+		if (hadError) return null;
+
+		//folds constant expressions and drops code that can never run
+		return new Optimizer().optimize(statements);
+	}
+
+	/**
+	 * Runs statements on the selected backend
+	 */
+	private static void execute(List<Statement> statements) {
+		if (useVm) {
+			//compiles the syntax tree to bytecode and runs it
+			VmFunction script = new Compiler().compile(statements);
+			if (hadError) return;
+
+			vm.interpret(script);
+			return;
+		}
 
 		//Interpret the syntax tree
 		interpreter.interpret(statements);
@@ -133,7 +297,7 @@ public class Billou {
 		if (token.type == TokenType.EOF) {
 			report(token.line, " at end", message);
 		} else {
-			report(token.line, " at '" + token.lexeme + "'", message);
+			report(token.line, " at '" + token.lexeme() + "'", message);
 		}
 	}
 
@@ -141,7 +305,7 @@ public class Billou {
 	//Evaluating Expressions runtime-error-method
 	static void runtimeError(RuntimeError error) {
 		System.err.println(error.getMessage() +
-				"\n[line " + error.token.line + "]");
+				"\n[line " + error.line + "]");
 		hadRuntimeError = true;
 	}
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package org.derby.billou;
 
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -8,26 +9,34 @@ class BillouClass implements BillouCallable {
 
 	final String name;
 	final BillouClass superclass;
+	// shape of a new instance, root of all shapes of this class
+	final Shape shape = new Shape();
+	// most fields any instance has had so far, to size new instances
+	int fieldCount = 0;
 
-	private final Map<String, BillouFunction> methods;
+	// own and inherited methods, overrides already applied
+	private final Map<Symbol, BillouFunction> methods;
+	private final BillouFunction initializer;
+	private final int arity;
 
 	BillouClass(String name, BillouClass superclass,
-			Map<String, BillouFunction> methods) {
+			Map<Symbol, BillouFunction> methods) {
 		this.superclass = superclass;
 
 		this.name = name;
-		this.methods = methods;
-	}
-
-	BillouFunction findMethod(String name) {
-		if (methods.containsKey(name)) {
-			return methods.get(name);
-		}
 		if (superclass != null) {
-			return superclass.findMethod(name);
+			this.methods = new HashMap<>(superclass.methods);
+			this.methods.putAll(methods);
+		} else {
+			this.methods = methods;
 		}
 
-		return null;
+		this.initializer = this.methods.get(Symbol.INIT);
+		this.arity = initializer != null ? initializer.arity() : 0;
+	}
+
+	BillouFunction findMethod(Symbol name) {
+		return methods.get(name);
 	}
 
 	@Override
@@ -39,9 +48,8 @@ class BillouClass implements BillouCallable {
 	public Object call(Interpreter interpreter,
 			List<Object> arguments) {
 		BillouInstance instance = new BillouInstance(this);
-		BillouFunction initializer = findMethod("init");
 		if (initializer != null) {
-			initializer.bind(instance).call(interpreter, arguments);
+			initializer.invoke(interpreter, instance, arguments);
 		}
 
 		return instance;
@@ -49,10 +57,6 @@ class BillouClass implements BillouCallable {
 
 	@Override
 	public int arity() {
-		BillouFunction initializer = findMethod("init");
-		if (initializer == null) return 0;
-		return initializer.arity();
-
+		return arity;
 	}
 }
-
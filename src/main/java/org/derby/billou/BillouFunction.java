@@ -7,27 +7,32 @@ class BillouFunction implements BillouCallable {
 	private final Env closure;
 
 	private final boolean isInitializer;
+	// the instance a bound method runs on, null otherwise
+	private final BillouInstance receiver;
 
 	BillouFunction(Statement.Function declaration, Env closure,
 			boolean isInitializer) {
+		this(declaration, closure, isInitializer, null);
+	}
+
+	private BillouFunction(Statement.Function declaration, Env closure,
+			boolean isInitializer, BillouInstance receiver) {
 		this.isInitializer = isInitializer;
 
 		this.closure = closure;
 
 		this.declaration = declaration;
+		this.receiver = receiver;
 	}
 
 	BillouFunction bind(BillouInstance instance) {
-		Env env = new Env(closure);
-		env.define("this", instance);
-
-		return new BillouFunction(declaration, env,
-				isInitializer);
+		return new BillouFunction(declaration, closure,
+				isInitializer, instance);
 	}
 
 	@Override
 	public String toString() {
-		return "<fn " + declaration.name.lexeme + ">";
+		return "<fn " + declaration.name.lexeme() + ">";
 	}
 
 	@Override
@@ -38,26 +43,61 @@ class BillouFunction implements BillouCallable {
 	@Override
 	public Object call(Interpreter interpreter,
 			List<Object> arguments) {
+		return invoke(interpreter, receiver, arguments);
+	}
 
-		Env env = new Env(closure);
-
-		for (int i = 0; i < declaration.params.size(); i++) {
-			env.define(declaration.params.get(i).lexeme,
-					arguments.get(i));
-		}
-
-		try {
-			interpreter.executeBlock(declaration.body, env);
-		} catch (ReturnStatement returnStatementValue) {
-
-			if (isInitializer) return closure.getAt(0, "this");
+	BillouInstance receiver() {
+		return receiver;
+	}
 
-			return returnStatementValue.value;
+	/**
+	 * Runs the function, as a method of receiver when it is not null,
+	 * so a method can be called without binding it first. Calls it
+	 * ends with in tail position run in a loop here rather than
+	 * nested inside it, so they take no stack.
+	 */
+	Object invoke(Interpreter interpreter, BillouInstance receiver,
+			List<Object> arguments) {
+		BillouFunction function = this;
+		while (true) {
+			Ir.Function lowered = interpreter.lowered(function.declaration,
+					receiver != null);
+			if (lowered != null) {
+				Object value = IrInterpreter.run(lowered, interpreter, receiver, arguments);
+				return function.isInitializer ? receiver : value;
+			}
+
+			// a body parsed on first call gets its scope size as it is resolved
+			List<Statement> body = function.declaration.body();
+			Env env = new Env(function.closure, function.declaration.scopeSize);
+
+			// the Resolver puts a method's this in slot 0
+			int slot = 0;
+			if (receiver != null) env.define(slot++, receiver);
+			for (Object argument : arguments) {
+				env.define(slot++, argument);
+			}
+
+			Interpreter.Completion completion =
+					interpreter.executeBlock(body, env);
+
+			if (completion == Interpreter.Completion.TAIL_CALL) {
+				Interpreter.TailCall call = interpreter.tailCall;
+				function = call.function;
+				receiver = call.receiver;
+				arguments = call.arguments;
+				call.arguments = null;
+				continue;
+			}
+
+			if (function.isInitializer) return receiver;
+
+			if (completion == Interpreter.Completion.RETURN) {
+				return interpreter.takeReturnValue();
+			}
+
+			return null;
 		}
-
-		if (isInitializer) return closure.getAt(0, "this");
-
-		return null;
 	}
 
 }
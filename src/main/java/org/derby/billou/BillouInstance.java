@@ -1,33 +1,57 @@
 package org.derby.billou;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class BillouInstance {
-	private BillouClass klass;
-	private final Map<String, Object> fields = new HashMap<>();
+	final BillouClass klass;
+	// where each field lives in values
+	Shape shape;
+	Object[] values;
 
 	BillouInstance(BillouClass klass) {
 		this.klass = klass;
+		this.shape = klass.shape;
+		this.values = new Object[klass.fieldCount];
 	}
 
 
 	Object get(Token name) {
-		if (fields.containsKey(name.lexeme)) {
-			return fields.get(name.lexeme);
-		}
+		int index = shape.indexOf(name.symbol);
+		if (index >= 0) return values[index];
 
-		BillouFunction method = klass.findMethod(name.lexeme);
+		BillouFunction method = klass.findMethod(name.symbol);
 
 
 		if (method != null) return method.bind(this);
 
 		throw new RuntimeError(name,
-				"Undefined property '" + name.lexeme + "'.");
+				"Undefined property '" + name.lexeme() + "'.");
 	}
 
 	void set(Token name, Object value) {
-		fields.put(name.lexeme, value);
+		int index = shape.indexOf(name.symbol);
+		if (index >= 0) {
+			values[index] = value;
+		} else {
+			Shape next = shape.with(name.symbol);
+			put(next, next.size() - 1, value);
+		}
+	}
+
+	/**
+	 * Stores a field whose index is already known
+	 * @param shape the shape of this instance once the field is stored
+	 * @param index where shape puts the field
+	 * @param value
+	 */
+	void put(Shape shape, int index, Object value) {
+		if (index >= values.length) {
+			values = Arrays.copyOf(values, index + 1);
+			// size the next instances of the class for this many fields
+			if (klass.fieldCount < values.length) klass.fieldCount = values.length;
+		}
+		this.shape = shape;
+		values[index] = value;
 	}
 
 	@Override
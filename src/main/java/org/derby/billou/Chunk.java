@@ -0,0 +1,57 @@
+package org.derby.billou;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sequence of bytecode together with the
+ * constants it refers to and the source line
+ * of every byte
+ */
+class Chunk {
+	byte[] code = new byte[16];
+	int[] lines = new int[16];
+	int count = 0;
+
+	Object[] constants = new Object[8];
+	int constantCount = 0;
+
+	// global variable cells the VM resolved, by constant index of the name
+	VM.Global[] globalCache;
+
+	// index of every number and string already in the pool
+	private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+	void write(byte value, int line) {
+		if (count == code.length) {
+			code = Arrays.copyOf(code, count * 2);
+			lines = Arrays.copyOf(lines, count * 2);
+		}
+
+		code[count] = value;
+		lines[count] = line;
+		count++;
+	}
+
+	/**
+	 * Adds a value to the constant pool, reusing an
+	 * existing entry for equal numbers and strings
+	 * @param value
+	 * @return the index of the constant
+	 */
+	int addConstant(Object value) {
+		boolean shareable = value instanceof Double || value instanceof String;
+		if (shareable) {
+			Integer existing = constantIndex.get(value);
+			if (existing != null) return existing;
+		}
+
+		if (constantCount == constants.length) {
+			constants = Arrays.copyOf(constants, constantCount * 2);
+		}
+		constants[constantCount] = value;
+		if (shareable) constantIndex.put(value, constantCount);
+		return constantCount++;
+	}
+}
@@ -0,0 +1,644 @@
+package org.derby.billou;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles the syntax tree into bytecode for the VM.
+ *
+ * Local variables live in stack slots of the function's call
+ * frame. Variables a closure captures from an enclosing function
+ * are reached through upvalues. The tree must already have passed
+ * the Resolver, so scoping errors are not checked again here.
+ */
+class Compiler implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+
+	private enum FunctionType {
+		SCRIPT,
+		FUNCTION,
+		INITIALIZER,
+		METHOD
+	}
+
+	private static class Local {
+		final String name;
+		final int depth;
+		boolean isCaptured = false;
+
+		Local(String name, int depth) {
+			this.name = name;
+			this.depth = depth;
+		}
+	}
+
+	private static class Upvalue {
+		final int index;
+		final boolean isLocal;
+
+		Upvalue(int index, boolean isLocal) {
+			this.index = index;
+			this.isLocal = isLocal;
+		}
+	}
+
+	/**
+	 * Bookkeeping for the function currently being compiled
+	 */
+	private static class FunctionState {
+		final FunctionState enclosing;
+		final VmFunction function;
+		final FunctionType type;
+		final List<Local> locals = new ArrayList<>();
+		final List<Upvalue> upvalues = new ArrayList<>();
+		int scopeDepth = 0;
+
+		FunctionState(FunctionState enclosing, VmFunction function,
+				FunctionType type) {
+			this.enclosing = enclosing;
+			this.function = function;
+			this.type = type;
+
+			// slot zero holds the receiver in methods and the callee otherwise
+			boolean hasReceiver = type == FunctionType.METHOD ||
+					type == FunctionType.INITIALIZER;
+			locals.add(new Local(hasReceiver ? "this" : "", 0));
+		}
+	}
+
+	private static class ClassState {
+		final ClassState enclosing;
+		boolean hasSuperclass = false;
+
+		ClassState(ClassState enclosing) {
+			this.enclosing = enclosing;
+		}
+	}
+
+	private FunctionState current;
+	private ClassState currentClass;
+
+	// source line attached to the bytecode being emitted
+	private int line = 1;
+	// whether the call about to be compiled is returned as it is
+	private boolean tailCall = false;
+
+	/**
+	 * Compiles a whole program
+	 * @param statements
+	 * @return the function that runs the top-level code
+	 */
+	VmFunction compile(List<Statement> statements) {
+		current = new FunctionState(null, new VmFunction(null, 0),
+				FunctionType.SCRIPT);
+
+		for (Statement statement : statements) {
+			compile(statement);
+		}
+
+		emitReturn();
+		return current.function;
+	}
+
+	@Override
+	public Void visitBlockStmt(Statement.Block stmt) {
+		beginScope();
+		for (Statement statement : stmt.statements) {
+			compile(statement);
+		}
+		endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Statement.Class stmt) {
+		line = stmt.name.line;
+		int nameConstant = makeConstant(stmt.name.lexeme());
+		declareVariable(stmt.name);
+
+		emitOp(OpCode.CLASS);
+		emitShort(nameConstant);
+		defineVariable(nameConstant);
+
+		ClassState classState = new ClassState(currentClass);
+		currentClass = classState;
+
+		if (stmt.superclass != null) {
+			compile(stmt.superclass);
+
+			beginScope();
+			addLocal("super", stmt.superclass.name);
+
+			namedVariable(stmt.name.lexeme(), false);
+			line = stmt.superclass.name.line;
+			emitOp(OpCode.INHERIT);
+			classState.hasSuperclass = true;
+		}
+
+		namedVariable(stmt.name.lexeme(), false);
+		for (Statement.Function method : stmt.methods) {
+			FunctionType type = FunctionType.METHOD;
+			if (method.name.lexeme().equals("init")) {
+				type = FunctionType.INITIALIZER;
+			}
+
+			function(method, type);
+			emitOp(OpCode.METHOD);
+			emitShort(makeConstant(method.name.lexeme()));
+		}
+		emitOp(OpCode.POP);
+
+		if (classState.hasSuperclass) endScope();
+
+		currentClass = classState.enclosing;
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Statement.Expression stmt) {
+		compile(stmt.expression);
+		emitOp(OpCode.POP);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Statement.Function stmt) {
+		line = stmt.name.line;
+		int global = current.scopeDepth > 0 ? 0 : makeConstant(stmt.name.lexeme());
+		declareVariable(stmt.name);
+
+		function(stmt, FunctionType.FUNCTION);
+		defineVariable(global);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(Statement.If stmt) {
+		compile(stmt.condition);
+
+		int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emitOp(OpCode.POP);
+		compile(stmt.thenBranch);
+
+		int elseJump = emitJump(OpCode.JUMP);
+		patchJump(thenJump);
+		emitOp(OpCode.POP);
+
+		if (stmt.elseBranch != null) compile(stmt.elseBranch);
+		patchJump(elseJump);
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Statement.Print stmt) {
+		compile(stmt.expression);
+		emitOp(OpCode.PRINT);
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Statement.Return stmt) {
+		line = stmt.keyword.line;
+		if (stmt.value == null) {
+			emitReturn();
+		} else {
+			tailCall = stmt.isTailCall;
+			compile(stmt.value);
+			emitOp(OpCode.RETURN);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Statement.Var stmt) {
+		line = stmt.name.line;
+		int global = current.scopeDepth > 0 ? 0 : makeConstant(stmt.name.lexeme());
+		declareVariable(stmt.name);
+
+		if (stmt.initializer != null) {
+			compile(stmt.initializer);
+		} else {
+			emitOp(OpCode.NIL);
+		}
+
+		defineVariable(global);
+		return null;
+	}
+
+	@Override
+	public Void visitForStmt(Statement.For stmt) {
+		if (stmt.declares()) beginScope();
+		if (stmt.initializer != null) compile(stmt.initializer);
+
+		int loopStart = current.function.chunk.count;
+		int exitJump = -1;
+		if (stmt.condition != null) {
+			compile(stmt.condition);
+			exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+			emitOp(OpCode.POP);
+		}
+
+		compile(stmt.body);
+		if (stmt.increment != null) {
+			compile(stmt.increment);
+			emitOp(OpCode.POP);
+		}
+		emitLoop(loopStart);
+
+		if (exitJump != -1) {
+			patchJump(exitJump);
+			emitOp(OpCode.POP);
+		}
+		if (stmt.declares()) endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Statement.While stmt) {
+		int loopStart = current.function.chunk.count;
+		compile(stmt.condition);
+
+		int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emitOp(OpCode.POP);
+		compile(stmt.body);
+		emitLoop(loopStart);
+
+		patchJump(exitJump);
+		emitOp(OpCode.POP);
+		return null;
+	}
+
+	@Override
+	public Void visitAssignExpr(Expression.Assign expr) {
+		compile(expr.value);
+		line = expr.name.line;
+		namedVariable(expr.name.lexeme(), true);
+		return null;
+	}
+
+	@Override
+	public Void visitBinaryExpr(Expression.Binary expr) {
+		compile(expr.left);
+		compile(expr.right);
+
+		line = expr.operator.line;
+		switch (expr.operator.type) {
+		case BANG_EQUAL: emitOp(OpCode.NOT_EQUAL); break;
+		case EQUAL_EQUAL: emitOp(OpCode.EQUAL); break;
+		case GREATER: emitOp(OpCode.GREATER); break;
+		case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL); break;
+		case LESS: emitOp(OpCode.LESS); break;
+		case LESS_EQUAL: emitOp(OpCode.LESS_EQUAL); break;
+		case MINUS: emitOp(OpCode.SUBTRACT); break;
+		case PLUS: emitOp(OpCode.ADD); break;
+		case SLASH: emitOp(OpCode.DIVIDE); break;
+		case STAR: emitOp(OpCode.MULTIPLY); break;
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitCallExpr(Expression.Call expr) {
+		// only a plain call reuses the caller's frame
+		boolean tail = tailCall;
+		tailCall = false;
+
+		// calling a property directly skips creating a bound method
+		if (expr.callee instanceof Expression.Get) {
+			Expression.Get get = (Expression.Get) expr.callee;
+			compile(get.object);
+			compileArguments(expr.arguments);
+
+			line = expr.paren.line;
+			emitOp(OpCode.INVOKE);
+			emitShort(makeConstant(get.name.lexeme()));
+			emitByte(expr.arguments.size());
+			return null;
+		}
+
+		if (expr.callee instanceof Expression.Super) {
+			Expression.Super superExpr = (Expression.Super) expr.callee;
+			line = superExpr.keyword.line;
+			namedVariable("this", false);
+			compileArguments(expr.arguments);
+			line = superExpr.keyword.line;
+			namedVariable("super", false);
+
+			line = expr.paren.line;
+			emitOp(OpCode.SUPER_INVOKE);
+			emitShort(makeConstant(superExpr.method.lexeme()));
+			emitByte(expr.arguments.size());
+			return null;
+		}
+
+		compile(expr.callee);
+		compileArguments(expr.arguments);
+
+		line = expr.paren.line;
+		emitOp(tail ? OpCode.TAIL_CALL : OpCode.CALL);
+		emitByte(expr.arguments.size());
+		return null;
+	}
+
+	@Override
+	public Void visitGetExpr(Expression.Get expr) {
+		compile(expr.object);
+		line = expr.name.line;
+		emitOp(OpCode.GET_PROPERTY);
+		emitShort(makeConstant(expr.name.lexeme()));
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpr(Expression.Grouping expr) {
+		compile(expr.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitLiteralExpr(Expression.Literal expr) {
+		if (expr.value == null) {
+			emitOp(OpCode.NIL);
+		} else if (expr.value.equals(true)) {
+			emitOp(OpCode.TRUE);
+		} else if (expr.value.equals(false)) {
+			emitOp(OpCode.FALSE);
+		} else {
+			emitOp(OpCode.CONSTANT);
+			emitShort(makeConstant(expr.value));
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitLogicalExpr(Expression.Logical expr) {
+		compile(expr.left);
+
+		if (expr.operator.type == TokenType.OR) {
+			int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+			int endJump = emitJump(OpCode.JUMP);
+
+			patchJump(elseJump);
+			emitOp(OpCode.POP);
+			compile(expr.right);
+			patchJump(endJump);
+		} else {
+			int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+			emitOp(OpCode.POP);
+			compile(expr.right);
+			patchJump(endJump);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpr(Expression.Set expr) {
+		compile(expr.object);
+		compile(expr.value);
+		line = expr.name.line;
+		emitOp(OpCode.SET_PROPERTY);
+		emitShort(makeConstant(expr.name.lexeme()));
+		return null;
+	}
+
+	@Override
+	public Void visitSuperExpr(Expression.Super expr) {
+		line = expr.keyword.line;
+		namedVariable("this", false);
+		namedVariable("super", false);
+		line = expr.method.line;
+		emitOp(OpCode.GET_SUPER);
+		emitShort(makeConstant(expr.method.lexeme()));
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpr(Expression.This expr) {
+		line = expr.keyword.line;
+		namedVariable("this", false);
+		return null;
+	}
+
+	@Override
+	public Void visitUnaryExpr(Expression.Unary expr) {
+		compile(expr.right);
+
+		line = expr.operator.line;
+		switch (expr.operator.type) {
+		case BANG: emitOp(OpCode.NOT); break;
+		case MINUS: emitOp(OpCode.NEGATE); break;
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpr(Expression.Variable expr) {
+		line = expr.name.line;
+		namedVariable(expr.name.lexeme(), false);
+		return null;
+	}
+
+	private void compile(Statement statement) {
+		statement.accept(this);
+	}
+
+	private void compile(Expression expression) {
+		expression.accept(this);
+	}
+
+	private void compileArguments(List<Expression> arguments) {
+		for (Expression argument : arguments) {
+			compile(argument);
+		}
+	}
+
+	/**
+	 * Compiles a function body into its own VmFunction and
+	 * emits the code that wraps it in a closure at runtime
+	 */
+	private void function(Statement.Function declaration, FunctionType type) {
+		FunctionState state = new FunctionState(current,
+				new VmFunction(declaration.name.lexeme(), declaration.params.size()),
+				type);
+		current = state;
+
+		beginScope();
+		for (Token param : declaration.params) {
+			declareVariable(param);
+		}
+
+		for (Statement statement : declaration.body()) {
+			compile(statement);
+		}
+		emitReturn();
+
+		VmFunction function = state.function;
+		function.upvalueCount = state.upvalues.size();
+		current = state.enclosing;
+
+		line = declaration.name.line;
+		emitOp(OpCode.CLOSURE);
+		emitShort(makeConstant(function));
+		for (Upvalue upvalue : state.upvalues) {
+			emitByte(upvalue.isLocal ? 1 : 0);
+			emitByte(upvalue.index);
+		}
+	}
+
+	private void namedVariable(String name, boolean assign) {
+		int arg = resolveLocal(current, name);
+		if (arg != -1) {
+			emitOp(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL);
+			emitByte(arg);
+			return;
+		}
+
+		arg = resolveUpvalue(current, name);
+		if (arg != -1) {
+			emitOp(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE);
+			emitByte(arg);
+			return;
+		}
+
+		emitOp(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+		emitShort(makeConstant(name));
+	}
+
+	private int resolveLocal(FunctionState state, String name) {
+		for (int i = state.locals.size() - 1; i >= 0; i--) {
+			if (state.locals.get(i).name.equals(name)) return i;
+		}
+
+		return -1;
+	}
+
+	private int resolveUpvalue(FunctionState state, String name) {
+		if (state.enclosing == null) return -1;
+
+		int local = resolveLocal(state.enclosing, name);
+		if (local != -1) {
+			state.enclosing.locals.get(local).isCaptured = true;
+			return addUpvalue(state, local, true);
+		}
+
+		int upvalue = resolveUpvalue(state.enclosing, name);
+		if (upvalue != -1) {
+			return addUpvalue(state, upvalue, false);
+		}
+
+		return -1;
+	}
+
+	private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+		for (int i = 0; i < state.upvalues.size(); i++) {
+			Upvalue upvalue = state.upvalues.get(i);
+			if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+		}
+
+		if (state.upvalues.size() == 256) {
+			Billou.error(line, "Too many closure variables in function.");
+			return 0;
+		}
+
+		state.upvalues.add(new Upvalue(index, isLocal));
+		return state.upvalues.size() - 1;
+	}
+
+	private void beginScope() {
+		current.scopeDepth++;
+	}
+
+	private void endScope() {
+		current.scopeDepth--;
+
+		List<Local> locals = current.locals;
+		while (!locals.isEmpty() &&
+				locals.get(locals.size() - 1).depth > current.scopeDepth) {
+			if (locals.remove(locals.size() - 1).isCaptured) {
+				emitOp(OpCode.CLOSE_UPVALUE);
+			} else {
+				emitOp(OpCode.POP);
+			}
+		}
+	}
+
+	private void declareVariable(Token name) {
+		if (current.scopeDepth == 0) return;
+		addLocal(name.lexeme(), name);
+	}
+
+	private void addLocal(String name, Token token) {
+		if (current.locals.size() == 256) {
+			Billou.error(token, "Too many local variables in function.");
+			return;
+		}
+
+		current.locals.add(new Local(name, current.scopeDepth));
+	}
+
+	private void defineVariable(int global) {
+		if (current.scopeDepth > 0) return;
+
+		emitOp(OpCode.DEFINE_GLOBAL);
+		emitShort(global);
+	}
+
+	private int makeConstant(Object value) {
+		int constant = current.function.chunk.addConstant(value);
+		if (constant > 0xffff) {
+			Billou.error(line, "Too many constants in one chunk.");
+			return 0;
+		}
+
+		return constant;
+	}
+
+	private void emitOp(byte op) {
+		current.function.chunk.write(op, line);
+	}
+
+	private void emitByte(int value) {
+		current.function.chunk.write((byte) value, line);
+	}
+
+	private void emitShort(int value) {
+		emitByte((value >> 8) & 0xff);
+		emitByte(value & 0xff);
+	}
+
+	private int emitJump(byte op) {
+		emitOp(op);
+		emitShort(0xffff);
+		return current.function.chunk.count - 2;
+	}
+
+	private void patchJump(int offset) {
+		Chunk chunk = current.function.chunk;
+		int jump = chunk.count - offset - 2;
+		if (jump > 0xffff) {
+			Billou.error(line, "Too much code to jump over.");
+		}
+
+		chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+		chunk.code[offset + 1] = (byte) (jump & 0xff);
+	}
+
+	private void emitLoop(int loopStart) {
+		emitOp(OpCode.LOOP);
+
+		int offset = current.function.chunk.count - loopStart + 2;
+		if (offset > 0xffff) Billou.error(line, "Loop body too large.");
+
+		emitShort(offset);
+	}
+
+	private void emitReturn() {
+		if (current.type == FunctionType.INITIALIZER) {
+			emitOp(OpCode.GET_LOCAL);
+			emitByte(0);
+		} else {
+			emitOp(OpCode.NIL);
+		}
+
+		emitOp(OpCode.RETURN);
+	}
+}
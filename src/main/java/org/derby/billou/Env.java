@@ -5,46 +5,84 @@ import java.util.*;
 /**
  * This class acts like the memory of the
  * compiler
+ *
+ * Local scopes store their variables in a fixed-size array
+ * indexed by the slot the Resolver assigned to each declaration.
+ * Only the global scope keeps a name-keyed map, plus slots for the
+ * blocks at the top level that run in it.
+ *
+ * A local slot holding a number can keep it unboxed: the slot then
+ * holds NUMBER and the value lives at the same index of numbers.
+ * Reading such a slot as an Object boxes it.
  */
 class Env {
 
+	private static final Object NUMBER = new Object();
+
 	final Env enclosing;
-	private final Map<String, Object> values = new HashMap<>();
+	private Object[] slots;
+	private double[] numbers;
+	private final Map<Symbol, Object> values;
+
+	/**
+	 * Creates the global environment
+	 */
 	Env() {
 		enclosing = null;
+		slots = new Object[0];
+		values = new HashMap<>();
 	}
 
-	Env(Env enclosing) {
+	/**
+	 * Creates a local scope
+	 * @param enclosing the surrounding scope
+	 * @param size number of declarations in this scope
+	 */
+	Env(Env enclosing, int size) {
 		this.enclosing = enclosing;
+		this.slots = new Object[size];
+		this.values = null;
+	}
+
+	/**
+	 * Makes room for the locals of a flattened block run in this
+	 * scope. The Resolver sizes local scopes for the blocks flattened
+	 * into them, so only the global scope ever grows.
+	 */
+	void reserve(int size) {
+		if (slots.length >= size) return;
+		slots = Arrays.copyOf(slots, size);
+		if (numbers != null) numbers = Arrays.copyOf(numbers, size);
 	}
 
 	Object get(Token name) {
-		if (values.containsKey(name.lexeme)) {
-			return values.get(name.lexeme);
+		Object value = values.get(name.symbol);
+		if (value != null || values.containsKey(name.symbol)) {
+			return value;
 		}
 
-		if (enclosing != null) return enclosing.get(name);
-
 		throw new RuntimeError(name,
-				"Undefined variable '" + name.lexeme + "'.");
+				"Undefined variable '" + name.lexeme() + "'.");
 	}
 
 	void assign(Token name, Object value) {
-		if (values.containsKey(name.lexeme)) {
-			values.put(name.lexeme, value);
+		if (values.containsKey(name.symbol)) {
+			values.put(name.symbol, value);
 			return;
 		}
 
-		if (enclosing != null) {
-			enclosing.assign(name, value);
-			return;
-		}
 		throw new RuntimeError(name,
-				"Undefined variable '" + name.lexeme + "'.");
+				"Undefined variable '" + name.lexeme() + "'.");
 	}
-	void define(String name, Object value) {
+
+	void define(Symbol name, Object value) {
 		values.put(name, value);
 	}
+
+	void define(int slot, Object value) {
+		slots[slot] = value;
+	}
+
 	Env ancestor(int distance) {
 		Env env = this;
 		for (int i = 0; i < distance; i++) {
@@ -54,21 +92,61 @@ class Env {
 		return env;
 	}
 
-	Object getAt(int distance, String name) {
-		return ancestor(distance).values.get(name);
+	/**
+	 * Stores an unboxed number in a local slot
+	 */
+	void defineNumber(int slot, double value) {
+		if (numbers == null) numbers = new double[slots.length];
+		slots[slot] = NUMBER;
+		numbers[slot] = value;
 	}
 
-	void assignAt(int distance, Token name, Object value) {
-		ancestor(distance).values.put(name.lexeme, value);
+	boolean isNumber(int slot) {
+		return slots[slot] == NUMBER;
+	}
+
+	/**
+	 * Reads a slot for which isNumber is true without boxing it
+	 */
+	double number(int slot) {
+		return numbers[slot];
+	}
+
+	/**
+	 * Reads a local slot of this scope, boxing an unboxed number
+	 */
+	Object slot(int slot) {
+		Object value = slots[slot];
+		if (value == NUMBER) return numbers[slot];
+		return value;
+	}
+
+	Object getAt(int distance, int slot) {
+		return ancestor(distance).slot(slot);
+	}
+
+	void assignAt(int distance, int slot, Object value) {
+		ancestor(distance).slots[slot] = value;
+	}
+
+	void assignNumberAt(int distance, int slot, double value) {
+		ancestor(distance).defineNumber(slot, value);
 	}
 
 	@Override
 	public String toString() {
-		String result = values.toString();
+		String result;
+		if (values == null) {
+			Object[] boxed = new Object[slots.length];
+			for (int i = 0; i < slots.length; i++) boxed[i] = slot(i);
+			result = Arrays.toString(boxed);
+		} else {
+			result = values.toString();
+		}
 		if (enclosing != null) {
 			result += " -> " + enclosing.toString();
 		}
 
 		return result;
 	}
-}
\ No newline at end of file
+}
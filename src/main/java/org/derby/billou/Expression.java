@@ -19,9 +19,37 @@ abstract class Expression {
 		R visitVariableExpr(Variable expr);
 	}
 
+	/**
+	 * An expression that reads or writes a variable.
+	 * The Resolver records where the variable lives: depth is the
+	 * number of scopes to walk out and slot the index within that
+	 * scope, or depth is -1 when the variable is global.
+	 */
+	abstract static class VariableAccess extends Expression {
+		int depth = -1;
+		int slot;
+	}
+
+	/**
+	 * What an executable node has specialized itself to. Nodes start
+	 * UNINITIALIZED, pick a variant from the values seen on their
+	 * first evaluation and rewrite themselves to GENERIC for good
+	 * as soon as a later evaluation does not fit that variant.
+	 */
+	enum Specialization {
+		UNINITIALIZED,
+		// the operands, or the value a local is assigned, are numbers
+		NUMBER,
+		// both operands are strings, or the operand is a boolean
+		STRING, BOOLEAN,
+		// a call that always reaches the same callee
+		MONOMORPHIC,
+		GENERIC
+	}
+
 	// Nested Expr classes here...
 	//> expr-assign
-	static class Assign extends Expression {
+	static class Assign extends VariableAccess {
 		Assign(Token name, Expression value) {
 			this.name = name;
 			this.value = value;
@@ -34,6 +62,7 @@ abstract class Expression {
 
 		final Token name;
 		final Expression value;
+		Specialization specialization = Specialization.UNINITIALIZED;
 	}
 	//< expr-assign
 	//> expr-binary
@@ -52,6 +81,7 @@ abstract class Expression {
 		final Expression left;
 		final Token operator;
 		final Expression right;
+		Specialization specialization = Specialization.UNINITIALIZED;
 	}
 	//< expr-binary
 	//> expr-call
@@ -70,6 +100,8 @@ abstract class Expression {
 		final Expression callee;
 		final Token paren;
 		final List<Expression> arguments;
+		Specialization specialization = Specialization.UNINITIALIZED;
+		BillouCallable target;
 	}
 	//< expr-call
 	//> expr-get
@@ -77,6 +109,7 @@ abstract class Expression {
 		Get(Expression object, Token name) {
 			this.object = object;
 			this.name = name;
+			this.cache = new PropertyCache(name);
 		}
 
 		@Override
@@ -86,6 +119,7 @@ abstract class Expression {
 
 		final Expression object;
 		final Token name;
+		final PropertyCache cache;
 	}
 	//< expr-get
 	//> expr-grouping
@@ -140,6 +174,7 @@ abstract class Expression {
 			this.object = object;
 			this.name = name;
 			this.value = value;
+			this.cache = new PropertyCache(name);
 		}
 
 		@Override
@@ -150,10 +185,11 @@ abstract class Expression {
 		final Expression object;
 		final Token name;
 		final Expression value;
+		final PropertyCache cache;
 	}
 	//< expr-set
 	//> expr-super
-	static class Super extends Expression {
+	static class Super extends VariableAccess {
 		Super(Token keyword, Token method) {
 			this.keyword = keyword;
 			this.method = method;
@@ -169,7 +205,7 @@ abstract class Expression {
 	}
 	//< expr-super
 	//> expr-this
-	static class This extends Expression {
+	static class This extends VariableAccess {
 		This(Token keyword) {
 			this.keyword = keyword;
 		}
@@ -196,10 +232,11 @@ abstract class Expression {
 
 		final Token operator;
 		final Expression right;
+		Specialization specialization = Specialization.UNINITIALIZED;
 	}
 	//< expr-unary
 	//> expr-variable
-	static class Variable extends Expression {
+	static class Variable extends VariableAccess {
 		Variable(Token name) {
 			this.name = name;
 		}
@@ -1,7 +1,10 @@
 package org.derby.billou;
 
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -9,14 +12,51 @@ import java.util.Map;
  * Evaluates Expressions and Statements
  */
 class Interpreter implements Expression.Visitor<Object>,
-		Statement.Visitor<Void> {
+		Statement.Visitor<Interpreter.Completion> {
+	/**
+	 * How a statement finished. A return statement leaves its value
+	 * in returnValue and completes with RETURN, which every enclosing
+	 * statement passes on up to the function call. One that returns
+	 * what a Billou function call gives leaves that call in tailCall
+	 * instead and completes with TAIL_CALL, so the function making it
+	 * can run it in its place.
+	 */
+	enum Completion { NORMAL, RETURN, TAIL_CALL }
+
+	/**
+	 * The call a TAIL_CALL completion asks for, with its arguments
+	 * already evaluated and checked
+	 */
+	static final class TailCall {
+		BillouFunction function;
+		BillouInstance receiver;
+		List<Object> arguments;
+	}
+
+
 	final Env globals = new Env();
 	private Env env = globals;
 
-	private final Map<Expression, Integer> locals = new HashMap<>();
+	// compiles functions to JVM bytecode when enabled
+	private JvmCompiler jit = null;
+
+	// runs functions through the SSA optimizer when enabled, each
+	// lowered once, or mapped to UNSUPPORTED if it cannot be
+	private IrOptimizer ssa = null;
+	private final Map<Statement.Function, Object> functions = new IdentityHashMap<>();
+	private static final Object UNSUPPORTED = new Object();
+
+	// value of the return statement being completed
+	private Object returnValue = null;
+	// reused by every tail call
+	final TailCall tailCall = new TailCall();
+
+	// how many calls deep the program is, and may go
+	private int depth = 0;
+	private int maxDepth = Integer.MAX_VALUE;
 
 	Interpreter() {
-		globals.define("clock", new BillouCallable() {
+		globals.define(Symbol.of("clock"), new BillouCallable() {
 			@Override
 			public int arity() { return 0; }
 
@@ -31,9 +71,80 @@ class Interpreter implements Expression.Visitor<Object>,
 		});
 	}
 
+	/**
+	 * Compiles functions and top-level statements to JVM
+	 * bytecode where possible instead of walking their trees
+	 */
+	void enableJit() {
+		jit = new JvmCompiler(this);
+	}
+
+	/**
+	 * Sets how many calls deep a program may go before it fails
+	 * with a stack overflow. Without a limit it fails when the
+	 * Java stack runs out.
+	 */
+	void setMaxDepth(int depth) {
+		maxDepth = depth;
+	}
+
+	/**
+	 * Counts a call about to be made
+	 * @param paren the call's closing parenthesis, to report a
+	 * stack overflow at
+	 */
+	void enterCall(Token paren) {
+		if (depth == maxDepth) {
+			throw new RuntimeError(paren, "Stack overflow.");
+		}
+		depth++;
+	}
+
+	void exitCall() {
+		depth--;
+	}
+
+	/**
+	 * Lowers functions to SSA and optimizes them before they run
+	 * @param dump where to print each function before and after
+	 * every pass, or null
+	 */
+	void enableSsa(PrintStream dump) {
+		ssa = new IrOptimizer(dump);
+	}
+
+	/**
+	 * @param method whether the function runs as a method
+	 * @return the optimized SSA form of a function, or null if it is
+	 * to be walked as a tree
+	 */
+	Ir.Function lowered(Statement.Function declaration, boolean method) {
+		if (ssa == null) return null;
+
+		Object function = functions.get(declaration);
+		if (function == null) {
+			Ir.Function built = IrBuilder.build(declaration, method);
+			function = built != null ? ssa.optimize(built) : UNSUPPORTED;
+			functions.put(declaration, function);
+		}
+		return function != UNSUPPORTED ? (Ir.Function) function : null;
+	}
+
 	//> Statements and State interpret
 	void interpret(List<Statement> statements) {
 		try {
+			if (jit != null) {
+				MethodHandle[] compiled = jit.compileScript(statements);
+				for (int i = 0; i < compiled.length; i++) {
+					if (compiled[i] != null) {
+						JvmCompiler.run(compiled[i]);
+					} else {
+						execute(statements.get(i));
+					}
+				}
+				return;
+			}
+
 			for (Statement statement : statements) {
 				execute(statement);
 			}
@@ -46,36 +157,57 @@ class Interpreter implements Expression.Visitor<Object>,
 		return expression.accept(this);
 	}
 
-	private void execute(Statement statement) {
-		statement.accept(this);
-	}
-
-	void resolve(Expression expression, int depth) {
-		locals.put(expression, depth);
+	Completion execute(Statement statement) {
+		return statement.accept(this);
 	}
 
-	void executeBlock(List<Statement> statements,
+	/**
+	 * Runs statements in env until they finish or one returns, or
+	 * asks for a tail call
+	 */
+	Completion executeBlock(List<Statement> statements,
 			Env env) {
 		Env previous = this.env;
 		try {
 			this.env = env;
 
 			for (Statement statement : statements) {
-				execute(statement);
+				Completion completion = execute(statement);
+				if (completion != Completion.NORMAL) return completion;
 			}
+			return Completion.NORMAL;
 		} finally {
 			this.env = previous;
 		}
 	}
 
+	/**
+	 * Hands over the value of the return statement that completed
+	 * last, so the interpreter does not keep it alive
+	 */
+	Object takeReturnValue() {
+		Object value = returnValue;
+		returnValue = null;
+		return value;
+	}
+
 	@Override
-	public Void visitBlockStmt(Statement.Block stmt) {
-		executeBlock(stmt.statements, new Env(env));
-		return null;
+	public Completion visitBlockStmt(Statement.Block stmt) {
+		if (!stmt.flat) {
+			return executeBlock(stmt.statements, new Env(env, stmt.scopeSize));
+		}
+
+		// its locals have slots of their own in the current Env
+		env.reserve(stmt.scopeSize);
+		for (Statement statement : stmt.statements) {
+			Completion completion = execute(statement);
+			if (completion != Completion.NORMAL) return completion;
+		}
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitClassStmt(Statement.Class stmt) {
+	public Completion visitClassStmt(Statement.Class stmt) {
 		//> Inheritance interpret-superclass
 		Object superclass = null;
 		if (stmt.superclass != null) {
@@ -87,28 +219,28 @@ class Interpreter implements Expression.Visitor<Object>,
 		}
 
 		//< Inheritance interpret-superclass
-		env.define(stmt.name.lexeme, null);
+		declare(stmt.slot, stmt.name, null);
 		//> Inheritance begin-superclass-environment
 
 		if (stmt.superclass != null) {
-			env = new Env(env);
-			env.define("super", superclass);
+			env = new Env(env, 1);
+			env.define(0, superclass);
 		}
 
 
-		Map<String, BillouFunction> methods = new HashMap<>();
+		Map<Symbol, BillouFunction> methods = new HashMap<>();
 		for (Statement.Function method : stmt.methods) {
 
 
 			//> interpreter-method-initializer
 			BillouFunction function = new BillouFunction(method, env,
-					method.name.lexeme.equals("init"));
+					method.name.symbol == Symbol.INIT);
 			//< interpreter-method-initializer
-			methods.put(method.name.lexeme, function);
+			methods.put(method.name.symbol, function);
 		}
 
 		//> Inheritance interpreter-construct-class
-		BillouClass klass = new BillouClass(stmt.name.lexeme,
+		BillouClass klass = new BillouClass(stmt.name.lexeme(),
 				(BillouClass)superclass, methods);
 		//> end-superclass-environment
 
@@ -116,70 +248,179 @@ class Interpreter implements Expression.Visitor<Object>,
 			env = env.enclosing;
 		}
 
-		env.assign(stmt.name, klass);
-		return null;
+		declare(stmt.slot, stmt.name, klass);
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitExpressionStmt(Statement.Expression stmt) {
-		evaluate(stmt.expression);
-		return null;
+	public Completion visitExpressionStmt(Statement.Expression stmt) {
+		evaluateForEffect(stmt.expression);
+		return Completion.NORMAL;
+	}
+
+	private void evaluateForEffect(Expression expression) {
+		// an assignment used as a statement never needs its value boxed
+		if (expression instanceof Expression.Assign &&
+				((Expression.Assign) expression).specialization ==
+						Expression.Specialization.NUMBER) {
+			try {
+				evaluateNumber(expression);
+			} catch (UnexpectedResult ignored) {
+			}
+			return;
+		}
+
+		evaluate(expression);
+	}
+
+	@Override
+	public Completion visitForStmt(Statement.For stmt) {
+		Env previous = env;
+		try {
+			if (stmt.declares()) {
+				if (stmt.flat) {
+					env.reserve(stmt.scopeSize);
+				} else {
+					env = new Env(env, stmt.scopeSize);
+				}
+			}
+			if (stmt.initializer != null) execute(stmt.initializer);
+
+			if (stmt.counted &&
+					env.slot(((Statement.Var) stmt.initializer).slot) instanceof Double) {
+				return countedLoop(stmt);
+			}
+
+			while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+				Completion completion = execute(stmt.body);
+				if (completion != Completion.NORMAL) return completion;
+				if (stmt.increment != null) evaluateForEffect(stmt.increment);
+			}
+			return Completion.NORMAL;
+		} finally {
+			env = previous;
+		}
+	}
+
+	/**
+	 * Runs a counted loop whose variable started out a number, keeping
+	 * it in a local. The variable's slot is kept up to date only when
+	 * something other than the loop's clauses reads it.
+	 */
+	private Completion countedLoop(Statement.For stmt) {
+		Env scope = env;
+		int slot = ((Statement.Var) stmt.initializer).slot;
+		Expression.Binary condition = (Expression.Binary) stmt.condition;
+		boolean inclusive = condition.operator.type == TokenType.LESS_EQUAL;
+
+		double counter = (Double) scope.slot(slot);
+		while (true) {
+			Object bound = evaluate(condition.right);
+			if (!(bound instanceof Double)) {
+				checkNumberOperands(condition.operator, counter, bound);
+			}
+			double limit = (Double) bound;
+			if (inclusive ? !(counter <= limit) : !(counter < limit)) break;
+
+			Completion completion = execute(stmt.body);
+			if (completion != Completion.NORMAL) return completion;
+
+			counter += stmt.step;
+			if (stmt.observed) scope.defineNumber(slot, counter);
+		}
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitFunctionStmt(Statement.Function stmt) {
+	public Completion visitFunctionStmt(Statement.Function stmt) {
+
+		if (jit != null) {
+			JvmFunction compiled = jit.compile(stmt);
+			if (compiled != null) {
+				declare(stmt.slot, stmt.name, compiled);
+				return Completion.NORMAL;
+			}
+		}
 
 		//construct class
 		BillouFunction function = new BillouFunction(stmt, env,
 				false);
 		//< Classes construct-function
-		env.define(stmt.name.lexeme, function);
-		return null;
+		declare(stmt.slot, stmt.name, function);
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitIfStmt(Statement.If stmt) {
+	public Completion visitIfStmt(Statement.If stmt) {
 		if (isTruthy(evaluate(stmt.condition))) {
-			execute(stmt.thenBranch);
+			return execute(stmt.thenBranch);
 		} else if (stmt.elseBranch != null) {
-			execute(stmt.elseBranch);
+			return execute(stmt.elseBranch);
 		}
-		return null;
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitPrintStmt(Statement.Print stmt) {
+	public Completion visitPrintStmt(Statement.Print stmt) {
 		Object value = evaluate(stmt.expression);
 		System.out.println(stringify(value));
-		return null;
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitReturnStmt(Statement.Return stmt) {
+	public Completion visitReturnStmt(Statement.Return stmt) {
+		if (stmt.isTailCall) return tailCall((Expression.Call) stmt.value);
+
 		Object value = null;
 		if (stmt.value != null) value = evaluate(stmt.value);
 
-		throw new ReturnStatement(value);
+		returnValue = value;
+		return Completion.RETURN;
 	}
 
 	@Override
-	public Void visitVarStmt(Statement.Var stmt) {
+	public Completion visitVarStmt(Statement.Var stmt) {
+		if (stmt.slot >= 0 && stmt.initializer != null &&
+				producesNumber(stmt.initializer)) {
+			try {
+				env.defineNumber(stmt.slot, evaluateNumber(stmt.initializer));
+			} catch (UnexpectedResult miss) {
+				env.define(stmt.slot, miss.value);
+			}
+			return Completion.NORMAL;
+		}
+
 		Object value = null;
 		if (stmt.initializer != null) {
 			value = evaluate(stmt.initializer);
 		}
 
-		env.define(stmt.name.lexeme, value);
-		return null;
+		declare(stmt.slot, stmt.name, value);
+		return Completion.NORMAL;
+	}
+
+	/**
+	 * Binds a declared name in the current scope
+	 * @param slot the slot the Resolver assigned, or -1 for a global
+	 * @param name
+	 * @param value
+	 */
+	private void declare(int slot, Token name, Object value) {
+		if (slot < 0) {
+			env.define(name.symbol, value);
+		} else {
+			env.define(slot, value);
+		}
 	}
 	//< Statements and State visit-var
 	//> Control Flow visit-while
 	@Override
-	public Void visitWhileStmt(Statement.While stmt) {
+	public Completion visitWhileStmt(Statement.While stmt) {
 		while (isTruthy(evaluate(stmt.condition))) {
-			execute(stmt.body);
+			Completion completion = execute(stmt.body);
+			if (completion != Completion.NORMAL) return completion;
 		}
-		return null;
+		return Completion.NORMAL;
 	}
 	//< Control Flow visit-while
 	//> Statements and State visit-assign
@@ -191,13 +432,19 @@ class Interpreter implements Expression.Visitor<Object>,
 */
 		//> Resolving and Binding resolved-assign
 
-		Integer distance = locals.get(expr);
-		if (distance != null) {
-			env.assignAt(distance, expr.name, value);
+		if (expr.depth >= 0) {
+			env.assignAt(expr.depth, expr.slot, value);
 		} else {
 			globals.assign(expr.name, value);
 		}
 
+		// locals assigned numbers are stored unboxed from now on
+		if (expr.specialization == Expression.Specialization.UNINITIALIZED) {
+			expr.specialization = expr.depth >= 0 && value instanceof Double
+					? Expression.Specialization.NUMBER
+					: Expression.Specialization.GENERIC;
+		}
+
 		//< Resolving and Binding resolved-assign
 		return value;
 	}
@@ -205,10 +452,210 @@ class Interpreter implements Expression.Visitor<Object>,
 	//> visit-binary
 	@Override
 	public Object visitBinaryExpr(Expression.Binary expr) {
+		if (expr.specialization == Expression.Specialization.NUMBER) {
+			double left;
+			try {
+				left = evaluateNumber(expr.left);
+			} catch (UnexpectedResult miss) {
+				expr.specialization = Expression.Specialization.GENERIC;
+				return binary(expr.operator, miss.value, evaluate(expr.right));
+			}
+
+			try {
+				return numbers(expr.operator, left, evaluateNumber(expr.right));
+			} catch (UnexpectedResult miss) {
+				expr.specialization = Expression.Specialization.GENERIC;
+				return binary(expr.operator, left, miss.value);
+			}
+		}
+
 		Object left = evaluate(expr.left);
 		Object right = evaluate(expr.right); // [left]
 
-		switch (expr.operator.type) {
+		switch (expr.specialization) {
+		case STRING:
+			if (Rope.isString(left) && Rope.isString(right)) {
+				return Rope.concat(left, right);
+			}
+			break;
+		case UNINITIALIZED:
+			expr.specialization = specialize(expr.operator, left, right);
+			return binary(expr.operator, left, right);
+		default:
+			return binary(expr.operator, left, right);
+		}
+
+		expr.specialization = Expression.Specialization.GENERIC;
+		return binary(expr.operator, left, right);
+	}
+
+	/**
+	 * Picks the variant a binary node rewrites itself to from the
+	 * operands of its first evaluation
+	 */
+	private static Expression.Specialization specialize(Token operator,
+			Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return Expression.Specialization.NUMBER;
+		}
+		if (operator.type == TokenType.PLUS &&
+				Rope.isString(left) && Rope.isString(right)) {
+			return Expression.Specialization.STRING;
+		}
+		return Expression.Specialization.GENERIC;
+	}
+
+	/**
+	 * Applies a binary operator to operands known to be numbers
+	 */
+	private static Object numbers(Token operator, double left, double right) {
+		switch (operator.type) {
+		// same as Double.equals, so NaN equals itself and -0 does not equal 0
+		case BANG_EQUAL:
+			return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+		case EQUAL_EQUAL:
+			return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+		case GREATER: return left > right;
+		case GREATER_EQUAL: return left >= right;
+		case LESS: return left < right;
+		case LESS_EQUAL: return left <= right;
+		default: return arithmetic(operator, left, right);
+		}
+	}
+
+	private static boolean isArithmetic(Token operator) {
+		TokenType type = operator.type;
+		return type == TokenType.PLUS || type == TokenType.MINUS ||
+				type == TokenType.STAR || type == TokenType.SLASH;
+	}
+
+	private static double arithmetic(Token operator, double left, double right) {
+		switch (operator.type) {
+		case MINUS: return left - right;
+		case PLUS: return left + right;
+		case SLASH: return left / right;
+		case STAR: return left * right;
+		}
+
+		// Unreachable.
+		return 0;
+	}
+
+	/**
+	 * Raised by evaluateNumber when an expression did not produce
+	 * a number after all
+	 */
+	private static class UnexpectedResult extends RuntimeException {
+		final Object value;
+
+		UnexpectedResult(Object value) {
+			super(null, null, false, false);
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Whether an expression has so far only produced numbers, so
+	 * evaluating it with evaluateNumber is unlikely to miss
+	 */
+	private static boolean producesNumber(Expression expression) {
+		if (expression instanceof Expression.Literal) {
+			return ((Expression.Literal) expression).value instanceof Double;
+		}
+		if (expression instanceof Expression.Grouping) {
+			return producesNumber(((Expression.Grouping) expression).expression);
+		}
+		if (expression instanceof Expression.Assign) {
+			return ((Expression.Assign) expression).specialization ==
+					Expression.Specialization.NUMBER;
+		}
+		if (expression instanceof Expression.Binary) {
+			Expression.Binary binary = (Expression.Binary) expression;
+			return binary.specialization == Expression.Specialization.NUMBER &&
+					isArithmetic(binary.operator);
+		}
+		if (expression instanceof Expression.Unary) {
+			Expression.Unary unary = (Expression.Unary) expression;
+			return unary.specialization == Expression.Specialization.NUMBER;
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluates an expression expected to produce a number without
+	 * boxing it. Numeric nodes pass their operands unboxed, local
+	 * slots are read and written unboxed, anything else is evaluated
+	 * as usual and unboxed.
+	 * @throws UnexpectedResult carrying the value if it is not a number
+	 */
+	private double evaluateNumber(Expression expression) {
+		if (expression instanceof Expression.Binary) {
+			Expression.Binary binary = (Expression.Binary) expression;
+			if (binary.specialization == Expression.Specialization.NUMBER &&
+					isArithmetic(binary.operator)) {
+				double left;
+				try {
+					left = evaluateNumber(binary.left);
+				} catch (UnexpectedResult miss) {
+					binary.specialization = Expression.Specialization.GENERIC;
+					throw new UnexpectedResult(binary(binary.operator,
+							miss.value, evaluate(binary.right)));
+				}
+
+				double right;
+				try {
+					right = evaluateNumber(binary.right);
+				} catch (UnexpectedResult miss) {
+					binary.specialization = Expression.Specialization.GENERIC;
+					throw new UnexpectedResult(binary(binary.operator,
+							left, miss.value));
+				}
+				return arithmetic(binary.operator, left, right);
+			}
+		} else if (expression instanceof Expression.Unary) {
+			Expression.Unary unary = (Expression.Unary) expression;
+			if (unary.specialization == Expression.Specialization.NUMBER) {
+				try {
+					return -evaluateNumber(unary.right);
+				} catch (UnexpectedResult miss) {
+					unary.specialization = Expression.Specialization.GENERIC;
+					throw new UnexpectedResult(unary(unary.operator, miss.value));
+				}
+			}
+		} else if (expression instanceof Expression.Variable) {
+			Expression.Variable variable = (Expression.Variable) expression;
+			if (variable.depth >= 0) {
+				Env scope = env.ancestor(variable.depth);
+				if (scope.isNumber(variable.slot)) return scope.number(variable.slot);
+			}
+		} else if (expression instanceof Expression.Assign) {
+			Expression.Assign assign = (Expression.Assign) expression;
+			if (assign.specialization == Expression.Specialization.NUMBER) {
+				double value;
+				try {
+					value = evaluateNumber(assign.value);
+				} catch (UnexpectedResult miss) {
+					assign.specialization = Expression.Specialization.GENERIC;
+					env.assignAt(assign.depth, assign.slot, miss.value);
+					throw miss;
+				}
+				env.assignNumberAt(assign.depth, assign.slot, value);
+				return value;
+			}
+		} else if (expression instanceof Expression.Grouping) {
+			return evaluateNumber(((Expression.Grouping) expression).expression);
+		}
+
+		Object value = evaluate(expression);
+		if (value instanceof Double) return (double) value;
+		throw new UnexpectedResult(value);
+	}
+
+	/**
+	 * Applies a binary operator to evaluated operands
+	 */
+	static Object binary(Token operator, Object left, Object right) {
+		switch (operator.type) {
 		//> binary-equality
 		case BANG_EQUAL: return !isEqual(left, right);
 		case EQUAL_EQUAL: return isEqual(left, right);
@@ -216,28 +663,28 @@ class Interpreter implements Expression.Visitor<Object>,
 		//> binary-comparison
 		case GREATER:
 			//> check-greater-operand
-			checkNumberOperands(expr.operator, left, right);
+			checkNumberOperands(operator, left, right);
 			//< check-greater-operand
 			return (double)left > (double)right;
 		case GREATER_EQUAL:
 			//> check-greater-equal-operand
-			checkNumberOperands(expr.operator, left, right);
+			checkNumberOperands(operator, left, right);
 			//< check-greater-equal-operand
 			return (double)left >= (double)right;
 		case LESS:
 			//> check-less-operand
-			checkNumberOperands(expr.operator, left, right);
+			checkNumberOperands(operator, left, right);
 			//< check-less-operand
 			return (double)left < (double)right;
 		case LESS_EQUAL:
 			//> check-less-equal-operand
-			checkNumberOperands(expr.operator, left, right);
+			checkNumberOperands(operator, left, right);
 			//< check-less-equal-operand
 			return (double)left <= (double)right;
 		//< binary-comparison
 		case MINUS:
 			//> check-minus-operand
-			checkNumberOperands(expr.operator, left, right);
+			checkNumberOperands(operator, left, right);
 			//< check-minus-operand
 			return (double)left - (double)right;
 		//> binary-plus
@@ -246,26 +693,26 @@ class Interpreter implements Expression.Visitor<Object>,
 				return (double)left + (double)right;
 			} // [plus]
 
-			if (left instanceof String && right instanceof String) {
-				return (String)left + (String)right;
+			if (Rope.isString(left) && Rope.isString(right)) {
+				return Rope.concat(left, right);
 			}
 
 /* Evaluating Expressions binary-plus < Evaluating Expressions string-wrong-type
         break;
 */
 			//> string-wrong-type
-			throw new RuntimeError(expr.operator,
+			throw new RuntimeError(operator,
 					"Operands must be two numbers or two strings.");
 			//< string-wrong-type
 			//< binary-plus
 		case SLASH:
 			//> check-slash-operand
-			checkNumberOperands(expr.operator, left, right);
+			checkNumberOperands(operator, left, right);
 			//< check-slash-operand
 			return (double)left / (double)right;
 		case STAR:
 			//> check-star-operand
-			checkNumberOperands(expr.operator, left, right);
+			checkNumberOperands(operator, left, right);
 			//< check-star-operand
 			return (double)left * (double)right;
 		}
@@ -277,38 +724,169 @@ class Interpreter implements Expression.Visitor<Object>,
 	//> Functions visit-call
 	@Override
 	public Object visitCallExpr(Expression.Call expr) {
-		Object callee = evaluate(expr.callee);
+		enterCall(expr.paren);
+		try {
+			return evaluateCall(expr);
+		} catch (StackOverflowError error) {
+			// the Java stack ran out before maxDepth was reached
+			throw new RuntimeError(expr.paren, "Stack overflow.");
+		} finally {
+			exitCall();
+		}
+	}
 
+	private Object evaluateCall(Expression.Call expr) {
+		// a method called right where it is looked up runs on its
+		// receiver without being bound first
+		Object callee;
+		if (expr.callee instanceof Expression.Get) {
+			Expression.Get get = (Expression.Get) expr.callee;
+			Object object = evaluate(get.object);
+			if (!(object instanceof BillouInstance)) {
+				throw new RuntimeError(get.name,
+						"Only instances have properties.");
+			}
+
+			BillouInstance instance = (BillouInstance) object;
+			BillouFunction method = get.cache.method(instance);
+			if (method != null) return invoke(method, instance, expr);
+			callee = get.cache.get(instance);
+		} else if (expr.callee instanceof Expression.Super) {
+			Expression.Super superExpr = (Expression.Super) expr.callee;
+			BillouFunction method = superMethod(superExpr);
+			BillouInstance object = (BillouInstance) env.getAt(
+					superExpr.depth - 1, 0);
+			return invoke(method, object, expr);
+		} else {
+			callee = evaluate(expr.callee);
+		}
+
+		List<Object> arguments = evaluateArguments(expr);
+
+		switch (expr.specialization) {
+		case MONOMORPHIC:
+			// already checked to be callable with this many arguments
+			if (callee == expr.target) return expr.target.call(this, arguments);
+			expr.specialization = Expression.Specialization.GENERIC;
+			expr.target = null;
+			break;
+		case UNINITIALIZED:
+			if (callee instanceof BillouCallable &&
+					((BillouCallable)callee).arity() == arguments.size()) {
+				expr.specialization = Expression.Specialization.MONOMORPHIC;
+				expr.target = (BillouCallable)callee;
+			} else {
+				expr.specialization = Expression.Specialization.GENERIC;
+			}
+			break;
+		}
+
+		return call(callee, arguments, expr.paren);
+	}
+
+	/**
+	 * Evaluates a call in tail position like visitCallExpr does, but
+	 * leaves a call to a Billou function for the caller to make
+	 */
+	private Completion tailCall(Expression.Call expr) {
+		BillouFunction function;
+		BillouInstance receiver;
+		Object callee;
+		if (expr.callee instanceof Expression.Get) {
+			Expression.Get get = (Expression.Get) expr.callee;
+			Object object = evaluate(get.object);
+			if (!(object instanceof BillouInstance)) {
+				throw new RuntimeError(get.name,
+						"Only instances have properties.");
+			}
+
+			receiver = (BillouInstance) object;
+			function = get.cache.method(receiver);
+			callee = function != null ? function : get.cache.get(receiver);
+		} else if (expr.callee instanceof Expression.Super) {
+			Expression.Super superExpr = (Expression.Super) expr.callee;
+			function = superMethod(superExpr);
+			receiver = (BillouInstance) env.getAt(superExpr.depth - 1, 0);
+			callee = function;
+		} else {
+			callee = evaluate(expr.callee);
+			function = null;
+			receiver = null;
+		}
+
+		List<Object> arguments = evaluateArguments(expr);
+
+		if (function == null && callee instanceof BillouFunction) {
+			function = (BillouFunction) callee;
+			receiver = function.receiver();
+		}
+		if (function == null) {
+			returnValue = call(callee, arguments, expr.paren);
+			return Completion.RETURN;
+		}
+
+		checkArity(function, arguments, expr.paren);
+		tailCall.function = function;
+		tailCall.receiver = receiver;
+		tailCall.arguments = arguments;
+		return Completion.TAIL_CALL;
+	}
+
+	private List<Object> evaluateArguments(Expression.Call expr) {
 		List<Object> arguments = new ArrayList<>();
 		for (Expression argument : expr.arguments) { // [in-order]
 			arguments.add(evaluate(argument));
 		}
+		return arguments;
+	}
+
+	/**
+	 * Calls a method on an instance without allocating a bound method
+	 */
+	private Object invoke(BillouFunction method, BillouInstance receiver,
+			Expression.Call expr) {
+		List<Object> arguments = evaluateArguments(expr);
+		checkArity(method, arguments, expr.paren);
+		return method.invoke(this, receiver, arguments);
+	}
 
+	/**
+	 * Calls a value with arguments that are already evaluated
+	 * @param callee
+	 * @param arguments
+	 * @param paren the closing parenthesis of the call, for errors
+	 * @return the result of the call
+	 */
+	Object call(Object callee, List<Object> arguments, Token paren) {
 		//> check-is-callable
 		if (!(callee instanceof BillouCallable)) {
-			throw new RuntimeError(expr.paren,
+			throw new RuntimeError(paren,
 					"Can only call functions and classes.");
 		}
 
 		//< check-is-callable
 		BillouCallable function = (BillouCallable)callee;
-		//> check-arity
+		checkArity(function, arguments, paren);
+		return function.call(this, arguments);
+	}
+
+	//> check-arity
+	static void checkArity(BillouCallable function,
+			List<Object> arguments, Token paren) {
 		if (arguments.size() != function.arity()) {
-			throw new RuntimeError(expr.paren, "Expected " +
+			throw new RuntimeError(paren, "Expected " +
 					function.arity() + " arguments but got " +
 					arguments.size() + ".");
 		}
-
-		//< check-arity
-		return function.call(this, arguments);
 	}
+	//< check-arity
 	//< Functions visit-call
 	//> Classes interpreter-visit-get
 	@Override
 	public Object visitGetExpr(Expression.Get expr) {
 		Object object = evaluate(expr.object);
 		if (object instanceof BillouInstance) {
-			return ((BillouInstance) object).get(expr.name);
+			return expr.cache.get((BillouInstance) object);
 		}
 
 		throw new RuntimeError(expr.name,
@@ -352,33 +930,39 @@ class Interpreter implements Expression.Visitor<Object>,
 		}
 
 		Object value = evaluate(expr.value);
-		((BillouInstance)object).set(expr.name, value);
+		expr.cache.set((BillouInstance)object, value);
 		return value;
 	}
 	//< Classes interpreter-visit-set
 	//> Inheritance interpreter-visit-super
 	@Override
 	public Object visitSuperExpr(Expression.Super expr) {
-		int distance = locals.get(expr);
-		BillouClass superclass = (BillouClass) env.getAt(
-				distance, "super");
 		//> super-find-this
-
 		BillouInstance object = (BillouInstance) env.getAt(
-				distance - 1, "this");
+				expr.depth - 1, 0);
 		//< super-find-this
+
+		return superMethod(expr).bind(object);
+	}
+
+	/**
+	 * Finds the superclass method a super expression names
+	 */
+	private BillouFunction superMethod(Expression.Super expr) {
+		BillouClass superclass = (BillouClass) env.getAt(
+				expr.depth, 0);
 		//> super-find-method
 
-		BillouFunction method = superclass.findMethod(expr.method.lexeme);
+		BillouFunction method = superclass.findMethod(expr.method.symbol);
 		//> super-no-method
 
 		if (method == null) {
 			throw new RuntimeError(expr.method,
-					"Undefined property '" + expr.method.lexeme + "'.");
+					"Undefined property '" + expr.method.lexeme() + "'.");
 		}
 
 		//< super-no-method
-		return method.bind(object);
+		return method;
 		//< super-find-method
 	}
 	//< Inheritance interpreter-visit-super
@@ -391,16 +975,50 @@ class Interpreter implements Expression.Visitor<Object>,
 	//> visit-unary
 	@Override
 	public Object visitUnaryExpr(Expression.Unary expr) {
+		if (expr.specialization == Expression.Specialization.NUMBER) {
+			try {
+				return -evaluateNumber(expr.right);
+			} catch (UnexpectedResult miss) {
+				expr.specialization = Expression.Specialization.GENERIC;
+				return unary(expr.operator, miss.value);
+			}
+		}
+
 		Object right = evaluate(expr.right);
 
-		switch (expr.operator.type) {
+		switch (expr.specialization) {
+		case BOOLEAN:
+			if (right instanceof Boolean) return !(boolean)right;
+			break;
+		case UNINITIALIZED:
+			if (expr.operator.type == TokenType.MINUS && right instanceof Double) {
+				expr.specialization = Expression.Specialization.NUMBER;
+			} else if (expr.operator.type == TokenType.BANG && right instanceof Boolean) {
+				expr.specialization = Expression.Specialization.BOOLEAN;
+			} else {
+				expr.specialization = Expression.Specialization.GENERIC;
+			}
+			return unary(expr.operator, right);
+		default:
+			return unary(expr.operator, right);
+		}
+
+		expr.specialization = Expression.Specialization.GENERIC;
+		return unary(expr.operator, right);
+	}
+
+	/**
+	 * Applies a unary operator to an evaluated operand
+	 */
+	static Object unary(Token operator, Object right) {
+		switch (operator.type) {
 		//> unary-bang
 		case BANG:
 			return !isTruthy(right);
 		//< unary-bang
 		case MINUS:
 			//> check-unary-operand
-			checkNumberOperand(expr.operator, right);
+			checkNumberOperand(operator, right);
 			//< check-unary-operand
 			return -(double)right;
 		}
@@ -420,10 +1038,9 @@ class Interpreter implements Expression.Visitor<Object>,
 		//< Resolving and Binding call-look-up-variable
 	}
 	//> Resolving and Binding look-up-variable
-	private Object lookUpVariable(Token name, Expression expression) {
-		Integer distance = locals.get(expression);
-		if (distance != null) {
-			return env.getAt(distance, name.lexeme);
+	private Object lookUpVariable(Token name, Expression.VariableAccess expression) {
+		if (expression.depth >= 0) {
+			return env.getAt(expression.depth, expression.slot);
 		} else {
 			return globals.get(name);
 		}
@@ -431,13 +1048,13 @@ class Interpreter implements Expression.Visitor<Object>,
 	//< Resolving and Binding look-up-variable
 	//< Statements and State visit-variable
 	//> check-operand
-	private void checkNumberOperand(Token operator, Object operand) {
+	private static void checkNumberOperand(Token operator, Object operand) {
 		if (operand instanceof Double) return;
 		throw new RuntimeError(operator, "Operand must be a number.");
 	}
 	//< check-operand
 	//> check-operands
-	private void checkNumberOperands(Token operator,
+	private static void checkNumberOperands(Token operator,
 			Object left, Object right) {
 		if (left instanceof Double && right instanceof Double) return;
 		// [operand]
@@ -445,22 +1062,26 @@ class Interpreter implements Expression.Visitor<Object>,
 	}
 	//< check-operands
 	//> is-truthy
-	private boolean isTruthy(Object object) {
+	static boolean isTruthy(Object object) {
 		if (object == null) return false;
 		if (object instanceof Boolean) return (boolean)object;
 		return true;
 	}
 	//< is-truthy
 	//> is-equal
-	private boolean isEqual(Object a, Object b) {
+	static boolean isEqual(Object a, Object b) {
 		if (a == null && b == null) return true;
 		if (a == null) return false;
 
+		// a rope equals the string it spells
+		if (a instanceof Rope) a = a.toString();
+		if (b instanceof Rope) b = b.toString();
+
 		return a.equals(b);
 	}
 	//< is-equal
 	//> stringify
-	private String stringify(Object object) {
+	static String stringify(Object object) {
 		if (object == null) return "nil";
 
 		if (object instanceof Double) {
@@ -0,0 +1,358 @@
+package org.derby.billou;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SSA intermediate representation of a function body.
+ *
+ * A function is a graph of basic blocks. Every instruction defines
+ * at most one value and names the instructions it uses directly, so
+ * each value has exactly one definition. Where control flow joins,
+ * phi instructions at the top of a block pick the value that flowed
+ * in from each predecessor, in the order of its predecessors list.
+ * The last instruction of a reachable block is a jump, branch or
+ * return.
+ */
+final class Ir {
+	private Ir() {}
+
+	// the index-th parameter, counting a method's this as the first
+	static final int PARAM = 0;
+	static final int CONSTANT = 1;
+	static final int PHI = 2;
+	static final int COPY = 3;
+	static final int BINARY = 4;
+	static final int UNARY = 5;
+	static final int GET_GLOBAL = 6;
+	static final int SET_GLOBAL = 7;
+	static final int GET = 8;
+	// looks up a property about to be called, without binding a method
+	static final int METHOD = 9;
+	// fails unless the operand is an instance, before a SET's value runs
+	static final int CHECK_FIELDS = 10;
+	static final int SET = 11;
+	static final int CALL = 12;
+	// calls what METHOD found, on the instance it was found on
+	static final int INVOKE = 13;
+	static final int PRINT = 14;
+	static final int JUMP = 15;
+	static final int BRANCH = 16;
+	static final int RETURN = 17;
+
+	private static final String[] NAMES = {
+		"param", "const", "phi", "copy", "binary", "unary", "getglobal",
+		"setglobal", "get", "method", "checkfields", "set", "call", "invoke",
+		"print", "jump", "branch", "return"
+	};
+
+	static final class Function {
+		final Statement.Function declaration;
+		// whether parameter 0 is the receiver of a method
+		final boolean method;
+		final List<Block> blocks = new ArrayList<>();
+		// number of values, and the most phis a block has, once numbered
+		int size;
+		int phis;
+
+		Function(Statement.Function declaration, boolean method) {
+			this.declaration = declaration;
+			this.method = method;
+		}
+
+		Block entry() {
+			return blocks.get(0);
+		}
+
+		Block newBlock() {
+			Block block = new Block(blocks.size());
+			blocks.add(block);
+			return block;
+		}
+
+		/**
+		 * Drops blocks that became unreachable and gives every value
+		 * a slot, ready to run or print
+		 */
+		void number() {
+			List<Block> reachable = Blocks.reversePostorder(this);
+			for (Block block : blocks) {
+				if (reachable.contains(block)) continue;
+				// an unreachable block no longer feeds any phi
+				for (Block successor : block.successors()) {
+					int index = successor.predecessors.indexOf(block);
+					if (index < 0) continue;
+					successor.predecessors.remove(index);
+					for (Instruction phi : successor.phis) phi.operands.remove(index);
+				}
+			}
+			blocks.retainAll(reachable);
+
+			int id = 0;
+			for (int i = 0; i < blocks.size(); i++) {
+				Block block = blocks.get(i);
+				block.id = i;
+				for (Instruction phi : block.phis) phi.id = id++;
+				for (Instruction instruction : block.instructions) {
+					instruction.id = instruction.hasValue() ? id++ : -1;
+				}
+			}
+			size = id;
+
+			phis = 0;
+			for (Block block : blocks) {
+				phis = Math.max(phis, block.phis.size());
+				block.code = block.instructions.toArray(new Instruction[0]);
+				block.phiIds = ids(block.phis);
+				for (Instruction instruction : block.instructions) {
+					instruction.arguments = ids(instruction.operands);
+					if (instruction.targets == null) continue;
+
+					// the values each target's phis take along each edge
+					instruction.moves = new int[instruction.targets.length][];
+					for (int t = 0; t < instruction.targets.length; t++) {
+						Block target = instruction.targets[t];
+						int index = target.predecessors.indexOf(block);
+						int[] moves = new int[target.phis.size()];
+						for (int i = 0; i < moves.length; i++) {
+							moves[i] = target.phis.get(i).operand(index).id;
+						}
+						instruction.moves[t] = moves;
+					}
+				}
+			}
+		}
+
+		private static int[] ids(List<Instruction> instructions) {
+			int[] ids = new int[instructions.size()];
+			for (int i = 0; i < ids.length; i++) ids[i] = instructions.get(i).id;
+			return ids;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("fun ").append(declaration.name.lexeme()).append("(");
+			for (int i = 0; i < declaration.params.size(); i++) {
+				if (i > 0) builder.append(", ");
+				builder.append(declaration.params.get(i).lexeme());
+			}
+			builder.append(")\n");
+			for (Block block : blocks) builder.append(block);
+			return builder.toString();
+		}
+	}
+
+	static final class Block {
+		int id;
+		final List<Block> predecessors = new ArrayList<>();
+		final List<Instruction> phis = new ArrayList<>();
+		final List<Instruction> instructions = new ArrayList<>();
+		// filled in by number for running
+		Instruction[] code;
+		int[] phiIds;
+
+		Block(int id) {
+			this.id = id;
+		}
+
+		Instruction terminator() {
+			if (instructions.isEmpty()) return null;
+			Instruction last = instructions.get(instructions.size() - 1);
+			return last.op >= JUMP ? last : null;
+		}
+
+		List<Block> successors() {
+			Instruction terminator = terminator();
+			List<Block> successors = new ArrayList<>();
+			if (terminator == null || terminator.targets == null) return successors;
+			for (Block target : terminator.targets) successors.add(target);
+			return successors;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("b").append(id).append(":");
+			if (!predecessors.isEmpty()) {
+				builder.append(" <-");
+				for (Block predecessor : predecessors) {
+					builder.append(" b").append(predecessor.id);
+				}
+			}
+			builder.append("\n");
+			for (Instruction phi : phis) builder.append("  ").append(phi).append("\n");
+			for (Instruction instruction : instructions) {
+				builder.append("  ").append(instruction).append("\n");
+			}
+			return builder.toString();
+		}
+	}
+
+	static final class Instruction {
+		final int op;
+		final List<Instruction> operands = new ArrayList<>();
+		// the operator of BINARY and UNARY, the name of globals and
+		// properties, the token errors are reported at
+		final Token token;
+		// CONSTANT's value, PARAM's index
+		final Object constant;
+		// the Get or Set a property access came from, for its cache
+		final Expression node;
+		// JUMP's target, BRANCH's targets when true and when false
+		Block[] targets;
+		Block block;
+		int id = -1;
+		// filled in by number for running: the operands' ids, and per
+		// target the ids of the values its phis take
+		int[] arguments;
+		int[][] moves;
+
+		Instruction(int op, Token token, Object constant, Expression node) {
+			this.op = op;
+			this.token = token;
+			this.constant = constant;
+			this.node = node;
+		}
+
+		Instruction operand(int index) {
+			return operands.get(index);
+		}
+
+		/**
+		 * Whether the instruction defines a value others can use
+		 */
+		boolean hasValue() {
+			switch (op) {
+			case SET_GLOBAL: case CHECK_FIELDS: case SET: case PRINT:
+			case JUMP: case BRANCH: case RETURN:
+				return false;
+			default:
+				return true;
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			if (hasValue()) {
+				builder.append("v").append(id).append(" = ");
+			}
+			builder.append(NAMES[op]);
+			if (op == CONSTANT) {
+				builder.append(" ").append(constant instanceof String
+						? "\"" + constant + "\"" : Interpreter.stringify(constant));
+			} else if (op == PARAM) {
+				builder.append(" ").append(constant);
+			} else if (token != null && op != CALL && op != INVOKE && op != RETURN) {
+				builder.append(" ").append(token.lexeme());
+			}
+			for (Instruction operand : operands) {
+				builder.append(" v").append(operand.id);
+			}
+			if (op == PHI) {
+				builder.append("  ; from");
+				for (Block predecessor : block.predecessors) {
+					builder.append(" b").append(predecessor.id);
+				}
+			}
+			if (targets != null) {
+				for (Block target : targets) builder.append(" b").append(target.id);
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Orderings and dominance over a function's blocks
+	 */
+	static final class Blocks {
+		private Blocks() {}
+
+		/**
+		 * @return the blocks reachable from the entry, each before
+		 * its successors except along back edges
+		 */
+		static List<Block> reversePostorder(Function function) {
+			List<Block> postorder = new ArrayList<>();
+			java.util.Set<Block> visited = new java.util.HashSet<>();
+			// an explicit stack of blocks and the next successor to visit
+			List<Block> stack = new ArrayList<>();
+			List<Integer> next = new ArrayList<>();
+			stack.add(function.entry());
+			next.add(0);
+			visited.add(function.entry());
+			while (!stack.isEmpty()) {
+				int top = stack.size() - 1;
+				Block block = stack.get(top);
+				List<Block> successors = block.successors();
+				int index = next.get(top);
+				if (index < successors.size()) {
+					next.set(top, index + 1);
+					Block successor = successors.get(index);
+					if (visited.add(successor)) {
+						stack.add(successor);
+						next.add(0);
+					}
+				} else {
+					postorder.add(block);
+					stack.remove(top);
+					next.remove(top);
+				}
+			}
+
+			List<Block> order = new ArrayList<>();
+			for (int i = postorder.size() - 1; i >= 0; i--) order.add(postorder.get(i));
+			return order;
+		}
+
+		/**
+		 * Computes immediate dominators with the iterative algorithm of
+		 * Cooper, Harvey and Kennedy
+		 * @param order the reachable blocks in reverse postorder
+		 * @return each block's immediate dominator, indexed like order;
+		 * the entry is its own
+		 */
+		static int[] dominators(List<Block> order) {
+			java.util.Map<Block, Integer> index = new java.util.HashMap<>();
+			for (int i = 0; i < order.size(); i++) index.put(order.get(i), i);
+
+			int[] idom = new int[order.size()];
+			java.util.Arrays.fill(idom, -1);
+			idom[0] = 0;
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int i = 1; i < order.size(); i++) {
+					int dominator = -1;
+					for (Block predecessor : order.get(i).predecessors) {
+						Integer p = index.get(predecessor);
+						if (p == null || idom[p] < 0) continue;
+						dominator = dominator < 0 ? p : intersect(idom, p, dominator);
+					}
+					if (idom[i] != dominator) {
+						idom[i] = dominator;
+						changed = true;
+					}
+				}
+			}
+			return idom;
+		}
+
+		private static int intersect(int[] idom, int a, int b) {
+			while (a != b) {
+				while (a > b) a = idom[a];
+				while (b > a) b = idom[b];
+			}
+			return a;
+		}
+
+		static boolean dominates(int[] idom, int dominator, int block) {
+			while (block != dominator) {
+				if (block == 0) return false;
+				block = idom[block];
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,453 @@
+package org.derby.billou;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lowers a function body from its syntax tree into SSA form.
+ *
+ * Local variables become values directly, following Braun et al.'s
+ * "Simple and Efficient Construction of Static Single Assignment
+ * Form": each block remembers the value each variable last got in
+ * it, and a read in a block that has none looks into the block's
+ * predecessors, adding a phi where they join. A loop header is
+ * sealed only once its back edge is known, so reads in the loop
+ * get placeholder phis that are filled in then. Phis made this way
+ * may turn out trivial; IrOptimizer removes them along with copies.
+ *
+ * Only functions whose locals stay within them are lowered: one that
+ * declares functions or classes, reads a variable of an enclosing
+ * function or uses super is left to the Interpreter.
+ */
+class IrBuilder implements Expression.Visitor<Ir.Instruction>,
+		Statement.Visitor<Void> {
+
+	private static class Unsupported extends RuntimeException {
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+
+	private final Ir.Function function;
+	private Ir.Block current;
+
+	// per enclosing scope, the variable each slot holds
+	private final List<int[]> scopes = new ArrayList<>();
+	private int variables = 0;
+
+	private final Map<Ir.Block, Map<Integer, Ir.Instruction>> definitions = new HashMap<>();
+	private final Map<Ir.Block, Map<Integer, Ir.Instruction>> incompletePhis = new HashMap<>();
+	private final Set<Ir.Block> sealed = new HashSet<>();
+
+	private IrBuilder(Statement.Function declaration, boolean method) {
+		function = new Ir.Function(declaration, method);
+	}
+
+	/**
+	 * @param method whether the function is a method, with its
+	 * receiver in slot 0
+	 * @return the function in SSA form, or null if it cannot be lowered
+	 */
+	static Ir.Function build(Statement.Function declaration, boolean method) {
+		IrBuilder builder = new IrBuilder(declaration, method);
+		try {
+			builder.lower(declaration, method);
+		} catch (Unsupported e) {
+			return null;
+		}
+		builder.function.number();
+		return builder.function;
+	}
+
+	private void lower(Statement.Function declaration, boolean method) {
+		// a body parsed on first call gets its scope size as it is resolved
+		List<Statement> body = declaration.body();
+		current = function.newBlock();
+		seal(current);
+
+		int[] scope = beginScope(declaration.scopeSize);
+		int parameters = declaration.params.size() + (method ? 1 : 0);
+		for (int i = 0; i < parameters; i++) {
+			scope[i] = variables++;
+			write(scope[i], current, emit(Ir.PARAM, null, i, null));
+		}
+
+		for (Statement statement : body) lower(statement);
+		if (current.terminator() == null) {
+			emit(Ir.RETURN, null, null, null, constant(null));
+		}
+	}
+
+	private void lower(Statement statement) {
+		statement.accept(this);
+	}
+
+	private Ir.Instruction lower(Expression expression) {
+		return expression.accept(this);
+	}
+
+	private int[] beginScope(int size) {
+		int[] scope = new int[size];
+		scopes.add(scope);
+		return scope;
+	}
+
+	private void endScope() {
+		scopes.remove(scopes.size() - 1);
+	}
+
+	/**
+	 * @return the variable a resolved access names
+	 */
+	private int variable(Expression.VariableAccess access) {
+		if (access.depth >= scopes.size()) throw new Unsupported();
+		return scopes.get(scopes.size() - 1 - access.depth)[access.slot];
+	}
+
+	private Ir.Instruction emit(int op, Token token, Object constant,
+			Expression node, Ir.Instruction... operands) {
+		Ir.Instruction instruction = new Ir.Instruction(op, token, constant, node);
+		for (Ir.Instruction operand : operands) instruction.operands.add(operand);
+		instruction.block = current;
+		current.instructions.add(instruction);
+		return instruction;
+	}
+
+	private Ir.Instruction constant(Object value) {
+		return emit(Ir.CONSTANT, null, value, null);
+	}
+
+	private void jump(Ir.Block target) {
+		emit(Ir.JUMP, null, null, null).targets = new Ir.Block[] { target };
+		target.predecessors.add(current);
+	}
+
+	private void branch(Ir.Instruction condition, Ir.Block ifTrue, Ir.Block ifFalse) {
+		emit(Ir.BRANCH, null, null, null, condition).targets =
+				new Ir.Block[] { ifTrue, ifFalse };
+		ifTrue.predecessors.add(current);
+		ifFalse.predecessors.add(current);
+	}
+
+	//> SSA construction
+	private void write(int variable, Ir.Block block, Ir.Instruction value) {
+		definitions.computeIfAbsent(block, b -> new HashMap<>()).put(variable, value);
+	}
+
+	private Ir.Instruction read(int variable, Ir.Block block) {
+		Map<Integer, Ir.Instruction> defined = definitions.get(block);
+		if (defined != null && defined.containsKey(variable)) {
+			return defined.get(variable);
+		}
+		return readRecursive(variable, block);
+	}
+
+	private Ir.Instruction readRecursive(int variable, Ir.Block block) {
+		Ir.Instruction value;
+		if (!sealed.contains(block)) {
+			value = phi(block);
+			incompletePhis.computeIfAbsent(block, b -> new HashMap<>())
+					.put(variable, value);
+		} else if (block.predecessors.size() == 1) {
+			value = read(variable, block.predecessors.get(0));
+		} else if (block.predecessors.isEmpty()) {
+			// only code after a return gets here, and it never runs
+			Ir.Instruction nil = new Ir.Instruction(Ir.CONSTANT, null, null, null);
+			nil.block = block;
+			block.instructions.add(0, nil);
+			value = nil;
+		} else {
+			value = phi(block);
+			// break cycles through the loop before filling the phi in
+			write(variable, block, value);
+			addPhiOperands(variable, value);
+		}
+		write(variable, block, value);
+		return value;
+	}
+
+	private Ir.Instruction phi(Ir.Block block) {
+		Ir.Instruction phi = new Ir.Instruction(Ir.PHI, null, null, null);
+		phi.block = block;
+		block.phis.add(phi);
+		return phi;
+	}
+
+	private void addPhiOperands(int variable, Ir.Instruction phi) {
+		for (Ir.Block predecessor : phi.block.predecessors) {
+			phi.operands.add(read(variable, predecessor));
+		}
+	}
+
+	/**
+	 * Declares that block will get no more predecessors
+	 */
+	private void seal(Ir.Block block) {
+		Map<Integer, Ir.Instruction> phis = incompletePhis.remove(block);
+		if (phis != null) {
+			for (Map.Entry<Integer, Ir.Instruction> entry : phis.entrySet()) {
+				addPhiOperands(entry.getKey(), entry.getValue());
+			}
+		}
+		sealed.add(block);
+	}
+	//< SSA construction
+
+	@Override
+	public Void visitBlockStmt(Statement.Block stmt) {
+		// a flattened block's locals are in the enclosing scope's slots
+		if (!stmt.flat) beginScope(stmt.scopeSize);
+		for (Statement statement : stmt.statements) lower(statement);
+		if (!stmt.flat) endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Statement.Class stmt) {
+		throw new Unsupported();
+	}
+
+	@Override
+	public Void visitExpressionStmt(Statement.Expression stmt) {
+		lower(stmt.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Statement.Function stmt) {
+		throw new Unsupported();
+	}
+
+	@Override
+	public Void visitIfStmt(Statement.If stmt) {
+		Ir.Instruction condition = lower(stmt.condition);
+		Ir.Block thenBlock = function.newBlock();
+		Ir.Block elseBlock = stmt.elseBranch != null ? function.newBlock() : null;
+		Ir.Block merge = function.newBlock();
+
+		branch(condition, thenBlock, elseBlock != null ? elseBlock : merge);
+
+		seal(thenBlock);
+		current = thenBlock;
+		lower(stmt.thenBranch);
+		if (current.terminator() == null) jump(merge);
+
+		if (elseBlock != null) {
+			seal(elseBlock);
+			current = elseBlock;
+			lower(stmt.elseBranch);
+			if (current.terminator() == null) jump(merge);
+		}
+
+		seal(merge);
+		current = merge;
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Statement.Print stmt) {
+		emit(Ir.PRINT, null, null, null, lower(stmt.expression));
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Statement.Return stmt) {
+		// the tree walker runs tail calls without using up the Java stack
+		if (stmt.isTailCall) throw new Unsupported();
+
+		Ir.Instruction value = stmt.value != null ? lower(stmt.value)
+				: constant(null);
+		emit(Ir.RETURN, stmt.keyword, null, null, value);
+
+		// whatever follows in the same block never runs
+		current = function.newBlock();
+		seal(current);
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Statement.Var stmt) {
+		if (stmt.slot < 0) throw new Unsupported();
+
+		Ir.Instruction value = stmt.initializer != null
+				? lower(stmt.initializer) : constant(null);
+		int variable = variables++;
+		scopes.get(scopes.size() - 1)[stmt.slot] = variable;
+		write(variable, current, emit(Ir.COPY, stmt.name, null, null, value));
+		return null;
+	}
+
+	@Override
+	public Void visitForStmt(Statement.For stmt) {
+		if (stmt.declares() && !stmt.flat) beginScope(stmt.scopeSize);
+		if (stmt.initializer != null) lower(stmt.initializer);
+
+		Ir.Block header = function.newBlock();
+		jump(header);
+
+		current = header;
+		Ir.Instruction condition = stmt.condition != null
+				? lower(stmt.condition) : constant(true);
+		Ir.Block body = function.newBlock();
+		Ir.Block exit = function.newBlock();
+		branch(condition, body, exit);
+
+		seal(body);
+		current = body;
+		lower(stmt.body);
+		if (current.terminator() == null) {
+			if (stmt.increment != null) lower(stmt.increment);
+			jump(header);
+		}
+
+		seal(header);
+		seal(exit);
+		current = exit;
+		if (stmt.declares() && !stmt.flat) endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Statement.While stmt) {
+		Ir.Block header = function.newBlock();
+		jump(header);
+
+		current = header;
+		Ir.Instruction condition = lower(stmt.condition);
+		Ir.Block body = function.newBlock();
+		Ir.Block exit = function.newBlock();
+		branch(condition, body, exit);
+
+		seal(body);
+		current = body;
+		lower(stmt.body);
+		if (current.terminator() == null) jump(header);
+
+		seal(header);
+		seal(exit);
+		current = exit;
+		return null;
+	}
+
+	@Override
+	public Ir.Instruction visitAssignExpr(Expression.Assign expr) {
+		Ir.Instruction value = lower(expr.value);
+		if (expr.depth < 0) {
+			emit(Ir.SET_GLOBAL, expr.name, null, null, value);
+			return value;
+		}
+
+		Ir.Instruction copy = emit(Ir.COPY, expr.name, null, null, value);
+		write(variable(expr), current, copy);
+		return copy;
+	}
+
+	@Override
+	public Ir.Instruction visitBinaryExpr(Expression.Binary expr) {
+		Ir.Instruction left = lower(expr.left);
+		Ir.Instruction right = lower(expr.right);
+		return emit(Ir.BINARY, expr.operator, null, null, left, right);
+	}
+
+	@Override
+	public Ir.Instruction visitCallExpr(Expression.Call expr) {
+		if (expr.callee instanceof Expression.Super) throw new Unsupported();
+
+		List<Ir.Instruction> operands = new ArrayList<>();
+		int op = Ir.CALL;
+		if (expr.callee instanceof Expression.Get) {
+			// found before the arguments run, as the Interpreter does
+			Expression.Get get = (Expression.Get) expr.callee;
+			Ir.Instruction object = lower(get.object);
+			operands.add(object);
+			operands.add(emit(Ir.METHOD, get.name, null, get, object));
+			op = Ir.INVOKE;
+		} else {
+			operands.add(lower(expr.callee));
+		}
+
+		for (Expression argument : expr.arguments) {
+			operands.add(lower(argument));
+		}
+		return emit(op, expr.paren, null, null,
+				operands.toArray(new Ir.Instruction[0]));
+	}
+
+	@Override
+	public Ir.Instruction visitGetExpr(Expression.Get expr) {
+		return emit(Ir.GET, expr.name, null, expr, lower(expr.object));
+	}
+
+	@Override
+	public Ir.Instruction visitGroupingExpr(Expression.Grouping expr) {
+		return lower(expr.expression);
+	}
+
+	@Override
+	public Ir.Instruction visitLiteralExpr(Expression.Literal expr) {
+		return constant(expr.value);
+	}
+
+	@Override
+	public Ir.Instruction visitLogicalExpr(Expression.Logical expr) {
+		Ir.Instruction left = lower(expr.left);
+		Ir.Block right = function.newBlock();
+		Ir.Block merge = function.newBlock();
+
+		// the value is left, unless it is what makes right run
+		if (expr.operator.type == TokenType.OR) {
+			branch(left, merge, right);
+		} else {
+			branch(left, right, merge);
+		}
+
+		seal(right);
+		current = right;
+		Ir.Instruction value = lower(expr.right);
+		jump(merge);
+		seal(merge);
+
+		// merge is reached first from the branch, then from right
+		current = merge;
+		Ir.Instruction phi = phi(merge);
+		phi.operands.add(left);
+		phi.operands.add(value);
+		return phi;
+	}
+
+	@Override
+	public Ir.Instruction visitSetExpr(Expression.Set expr) {
+		Ir.Instruction object = lower(expr.object);
+		emit(Ir.CHECK_FIELDS, expr.name, null, null, object);
+		Ir.Instruction value = lower(expr.value);
+		emit(Ir.SET, expr.name, null, expr, object, value);
+		return value;
+	}
+
+	@Override
+	public Ir.Instruction visitSuperExpr(Expression.Super expr) {
+		throw new Unsupported();
+	}
+
+	@Override
+	public Ir.Instruction visitThisExpr(Expression.This expr) {
+		return read(variable(expr), current);
+	}
+
+	@Override
+	public Ir.Instruction visitUnaryExpr(Expression.Unary expr) {
+		return emit(Ir.UNARY, expr.operator, null, null, lower(expr.right));
+	}
+
+	@Override
+	public Ir.Instruction visitVariableExpr(Expression.Variable expr) {
+		if (expr.depth < 0) {
+			return emit(Ir.GET_GLOBAL, expr.name, null, null);
+		}
+		return read(variable(expr), current);
+	}
+}
@@ -0,0 +1,166 @@
+package org.derby.billou;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a function in SSA form. Every value has its own slot in a
+ * frame array, so locals need no Env; phis are filled in along the
+ * edge that leads to their block, all at once, since one may read
+ * another's old value.
+ */
+final class IrInterpreter {
+	private IrInterpreter() {}
+
+	/**
+	 * A field's value METHOD found, to tell it from a method
+	 */
+	private static final class Field {
+		final Object value;
+
+		Field(Object value) {
+			this.value = value;
+		}
+	}
+
+	static Object run(Ir.Function function, Interpreter interpreter,
+			BillouInstance receiver, List<Object> arguments) {
+		Object[] values = new Object[function.size];
+		Object[] incoming = new Object[function.phis];
+		Ir.Block block = function.entry();
+
+		while (true) {
+			Ir.Instruction[] code = block.code;
+			for (int i = 0; ; i++) {
+				Ir.Instruction instruction = code[i];
+				int[] operands = instruction.arguments;
+				switch (instruction.op) {
+				case Ir.PARAM: {
+					int index = (Integer) instruction.constant;
+					if (function.method) {
+						values[instruction.id] = index == 0 ? receiver
+								: arguments.get(index - 1);
+					} else {
+						values[instruction.id] = arguments.get(index);
+					}
+					continue;
+				}
+				case Ir.CONSTANT:
+					values[instruction.id] = instruction.constant;
+					continue;
+				case Ir.COPY:
+					values[instruction.id] = values[operands[0]];
+					continue;
+				case Ir.BINARY:
+					values[instruction.id] = Interpreter.binary(instruction.token,
+							values[operands[0]], values[operands[1]]);
+					continue;
+				case Ir.UNARY:
+					values[instruction.id] = Interpreter.unary(instruction.token,
+							values[operands[0]]);
+					continue;
+				case Ir.GET_GLOBAL:
+					values[instruction.id] = interpreter.globals.get(instruction.token);
+					continue;
+				case Ir.SET_GLOBAL:
+					interpreter.globals.assign(instruction.token, values[operands[0]]);
+					continue;
+				case Ir.GET:
+					values[instruction.id] = ((Expression.Get) instruction.node).cache
+							.get(instance(values[operands[0]], instruction.token));
+					continue;
+				case Ir.METHOD: {
+					PropertyCache cache = ((Expression.Get) instruction.node).cache;
+					BillouInstance instance = instance(values[operands[0]], instruction.token);
+					BillouFunction method = cache.method(instance);
+					values[instruction.id] = method != null ? method
+							: new Field(cache.get(instance));
+					continue;
+				}
+				case Ir.CHECK_FIELDS:
+					if (!(values[operands[0]] instanceof BillouInstance)) {
+						throw new RuntimeError(instruction.token,
+								"Only instances have fields.");
+					}
+					continue;
+				case Ir.SET:
+					((Expression.Set) instruction.node).cache.set(
+							(BillouInstance) values[operands[0]], values[operands[1]]);
+					continue;
+				case Ir.CALL:
+				case Ir.INVOKE:
+					interpreter.enterCall(instruction.token);
+					try {
+						values[instruction.id] = call(instruction, values, interpreter);
+					} catch (StackOverflowError error) {
+						throw new RuntimeError(instruction.token, "Stack overflow.");
+					} finally {
+						interpreter.exitCall();
+					}
+					continue;
+				case Ir.PRINT:
+					System.out.println(Interpreter.stringify(values[operands[0]]));
+					continue;
+				case Ir.JUMP:
+					block = enter(instruction, 0, values, incoming);
+					break;
+				case Ir.BRANCH:
+					block = enter(instruction,
+							Interpreter.isTruthy(values[operands[0]]) ? 0 : 1,
+							values, incoming);
+					break;
+				case Ir.RETURN:
+					return values[operands[0]];
+				}
+				break;
+			}
+		}
+	}
+
+	private static Object call(Ir.Instruction instruction, Object[] values,
+			Interpreter interpreter) {
+		int[] operands = instruction.arguments;
+		if (instruction.op == Ir.CALL) {
+			return interpreter.call(values[operands[0]],
+					arguments(values, operands, 1), instruction.token);
+		}
+
+		Object callee = values[operands[1]];
+		List<Object> arguments = arguments(values, operands, 2);
+		if (callee instanceof Field) {
+			return interpreter.call(((Field) callee).value, arguments, instruction.token);
+		}
+
+		BillouFunction method = (BillouFunction) callee;
+		Interpreter.checkArity(method, arguments, instruction.token);
+		return method.invoke(interpreter, (BillouInstance) values[operands[0]], arguments);
+	}
+
+	private static BillouInstance instance(Object object, Token name) {
+		if (object instanceof BillouInstance) return (BillouInstance) object;
+
+		throw new RuntimeError(name,
+				"Only instances have properties.");
+	}
+
+	private static List<Object> arguments(Object[] values, int[] operands, int from) {
+		List<Object> arguments = new ArrayList<>(operands.length - from);
+		for (int i = from; i < operands.length; i++) {
+			arguments.add(values[operands[i]]);
+		}
+		return arguments;
+	}
+
+	/**
+	 * Follows a jump or branch to one of its targets, filling in the
+	 * target's phis
+	 */
+	private static Ir.Block enter(Ir.Instruction jump, int target,
+			Object[] values, Object[] incoming) {
+		Ir.Block block = jump.targets[target];
+		int[] moves = jump.moves[target];
+		for (int i = 0; i < moves.length; i++) incoming[i] = values[moves[i]];
+		for (int i = 0; i < moves.length; i++) values[block.phiIds[i]] = incoming[i];
+		return block;
+	}
+}
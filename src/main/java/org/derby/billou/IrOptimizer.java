@@ -0,0 +1,524 @@
+package org.derby.billou;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the SSA passes over a function built by IrBuilder, in order:
+ * copy propagation, common subexpression elimination, loop-invariant
+ * code motion and dead store elimination.
+ *
+ * Nothing is moved or merged past what the program can observe: an
+ * operation that might fail is only hoisted where it would have run
+ * first anyway, and only stores nothing can read are dropped, so
+ * errors come out the same, on the same line.
+ */
+class IrOptimizer {
+	// where to print the function before and after each pass, or null
+	private final PrintStream dump;
+
+	IrOptimizer(PrintStream dump) {
+		this.dump = dump;
+	}
+
+	Ir.Function optimize(Ir.Function function) {
+		dump("built", function);
+		propagateCopies(function);
+		dump("after copy propagation", function);
+		eliminateCommonSubexpressions(function);
+		dump("after common subexpression elimination", function);
+		hoistLoopInvariants(function);
+		dump("after loop-invariant code motion", function);
+		eliminateDeadStores(function);
+		dump("after dead store elimination", function);
+		return function;
+	}
+
+	private void dump(String stage, Ir.Function function) {
+		function.number();
+		if (dump == null) return;
+		dump.println("== " + function.declaration.name.lexeme() + ": " + stage);
+		dump.print(function);
+	}
+
+	//> copy propagation
+	/**
+	 * Replaces copies and phis that only ever see one value with that
+	 * value
+	 */
+	private void propagateCopies(Ir.Function function) {
+		Map<Ir.Instruction, Ir.Instruction> replacements = new IdentityHashMap<>();
+		for (Ir.Block block : function.blocks) {
+			block.instructions.removeIf(instruction -> {
+				if (instruction.op != Ir.COPY) return false;
+				replacements.put(instruction, instruction.operand(0));
+				return true;
+			});
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Ir.Block block : function.blocks) {
+				for (Ir.Instruction phi : new ArrayList<>(block.phis)) {
+					Ir.Instruction same = trivialValue(phi, replacements);
+					if (same == null) continue;
+					replacements.put(phi, same);
+					block.phis.remove(phi);
+					changed = true;
+				}
+			}
+		}
+
+		replaceUses(function, replacements);
+	}
+
+	/**
+	 * @return the one value a phi takes besides itself, or null if
+	 * it takes several
+	 */
+	private static Ir.Instruction trivialValue(Ir.Instruction phi,
+			Map<Ir.Instruction, Ir.Instruction> replacements) {
+		Ir.Instruction same = null;
+		for (Ir.Instruction operand : phi.operands) {
+			operand = resolve(operand, replacements);
+			if (operand == phi || operand == same) continue;
+			if (same != null) return null;
+			same = operand;
+		}
+		return same;
+	}
+	//< copy propagation
+
+	//> common subexpression elimination
+	/**
+	 * Reuses the value of an operation already computed on the same
+	 * operands in a dominating block. A repeated check that an
+	 * instance has fields is dropped the same way.
+	 */
+	private void eliminateCommonSubexpressions(Ir.Function function) {
+		List<Ir.Block> order = Ir.Blocks.reversePostorder(function);
+		int[] idom = Ir.Blocks.dominators(order);
+		List<List<Integer>> children = new ArrayList<>();
+		for (int i = 0; i < order.size(); i++) children.add(new ArrayList<>());
+		for (int i = 1; i < order.size(); i++) children.get(idom[i]).add(i);
+
+		Map<Ir.Instruction, Ir.Instruction> replacements = new IdentityHashMap<>();
+		Map<List<Object>, Ir.Instruction> available = new HashMap<>();
+		eliminateCommonSubexpressions(0, order, children, available, replacements);
+		replaceUses(function, replacements);
+	}
+
+	private void eliminateCommonSubexpressions(int index, List<Ir.Block> order,
+			List<List<Integer>> children, Map<List<Object>, Ir.Instruction> available,
+			Map<Ir.Instruction, Ir.Instruction> replacements) {
+		List<List<Object>> added = new ArrayList<>();
+		Ir.Block block = order.get(index);
+		block.instructions.removeIf(instruction -> {
+			List<Object> key = key(instruction, replacements);
+			if (key == null) return false;
+
+			Ir.Instruction previous = available.get(key);
+			if (previous == null) {
+				available.put(key, instruction);
+				added.add(key);
+				return false;
+			}
+			if (instruction.hasValue()) replacements.put(instruction, previous);
+			return true;
+		});
+
+		for (int child : children.get(index)) {
+			eliminateCommonSubexpressions(child, order, children, available, replacements);
+		}
+		for (List<Object> key : added) available.remove(key);
+	}
+
+	/**
+	 * @return what identifies the result of an instruction, or null
+	 * if running it twice may differ
+	 */
+	private static List<Object> key(Ir.Instruction instruction,
+			Map<Ir.Instruction, Ir.Instruction> replacements) {
+		Object what;
+		switch (instruction.op) {
+		case Ir.CONSTANT:
+			// keeps 1 apart from true, and 0 from -0
+			what = instruction.constant == null ? null
+					: Arrays.asList(instruction.constant.getClass(), instruction.constant);
+			break;
+		case Ir.BINARY:
+		case Ir.UNARY:
+			what = instruction.token.type;
+			break;
+		case Ir.CHECK_FIELDS:
+			what = null;
+			break;
+		default:
+			return null;
+		}
+
+		List<Object> key = new ArrayList<>();
+		key.add(instruction.op);
+		key.add(what);
+		for (Ir.Instruction operand : instruction.operands) {
+			key.add(new Identity(resolve(operand, replacements)));
+		}
+		return key;
+	}
+
+	/**
+	 * Compares an instruction by identity inside a key
+	 */
+	private static final class Identity {
+		final Ir.Instruction instruction;
+
+		Identity(Ir.Instruction instruction) {
+			this.instruction = instruction;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Identity &&
+					((Identity) other).instruction == instruction;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(instruction);
+		}
+	}
+	//< common subexpression elimination
+
+	//> loop-invariant code motion
+	/**
+	 * Moves operations whose operands don't change in a loop out in
+	 * front of it. One that cannot fail is moved from anywhere in the
+	 * loop; one that might only from the start of the loop's
+	 * condition, which runs at least once whenever the loop is reached.
+	 */
+	private void hoistLoopInvariants(Ir.Function function) {
+		List<Ir.Block> order = Ir.Blocks.reversePostorder(function);
+		int[] idom = Ir.Blocks.dominators(order);
+		Set<Ir.Instruction> numbers = numbers(function);
+
+		// each loop as its header and blocks, innermost first
+		Map<Ir.Block, Set<Ir.Block>> loops = new HashMap<>();
+		for (int i = 0; i < order.size(); i++) {
+			for (Ir.Block successor : order.get(i).successors()) {
+				int header = order.indexOf(successor);
+				if (!Ir.Blocks.dominates(idom, header, i)) continue;
+				Set<Ir.Block> loop = loops.computeIfAbsent(successor, h -> new HashSet<>());
+				addLoopBlocks(loop, successor, order.get(i));
+			}
+		}
+		List<Ir.Block> headers = new ArrayList<>(loops.keySet());
+		headers.sort((a, b) -> loops.get(a).size() - loops.get(b).size());
+
+		for (Ir.Block header : headers) {
+			Set<Ir.Block> loop = loops.get(header);
+			Ir.Block preheader = preheader(header, loop);
+			if (preheader == null) continue;
+
+			List<Ir.Instruction> hoisted = new ArrayList<>();
+			// the condition's first instructions, up to one that stays
+			for (Ir.Instruction instruction : header.instructions) {
+				if (!isInvariant(instruction, loop) || !isPure(instruction)) break;
+				hoisted.add(instruction);
+				instruction.block = preheader;
+			}
+			header.instructions.removeAll(hoisted);
+			hoist(hoisted, preheader);
+
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (Ir.Block block : order) {
+					if (!loop.contains(block)) continue;
+					hoisted.clear();
+					for (Ir.Instruction instruction : block.instructions) {
+						if (isInvariant(instruction, loop) &&
+								cannotFail(instruction, numbers)) {
+							hoisted.add(instruction);
+							instruction.block = preheader;
+						}
+					}
+					if (hoisted.isEmpty()) continue;
+					block.instructions.removeAll(hoisted);
+					hoist(hoisted, preheader);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the blocks from which latch reaches the header without
+	 * passing through it
+	 */
+	private static void addLoopBlocks(Set<Ir.Block> loop, Ir.Block header,
+			Ir.Block latch) {
+		loop.add(header);
+		List<Ir.Block> work = new ArrayList<>();
+		if (loop.add(latch)) work.add(latch);
+		while (!work.isEmpty()) {
+			Ir.Block block = work.remove(work.size() - 1);
+			for (Ir.Block predecessor : block.predecessors) {
+				if (loop.add(predecessor)) work.add(predecessor);
+			}
+		}
+	}
+
+	/**
+	 * @return the only block that enters the loop, if it goes
+	 * nowhere else
+	 */
+	private static Ir.Block preheader(Ir.Block header, Set<Ir.Block> loop) {
+		Ir.Block preheader = null;
+		for (Ir.Block predecessor : header.predecessors) {
+			if (loop.contains(predecessor)) continue;
+			if (preheader != null) return null;
+			preheader = predecessor;
+		}
+		if (preheader == null || preheader.terminator().op != Ir.JUMP) return null;
+		return preheader;
+	}
+
+	private static void hoist(List<Ir.Instruction> instructions, Ir.Block preheader) {
+		preheader.instructions.addAll(preheader.instructions.size() - 1, instructions);
+	}
+
+	private static boolean isInvariant(Ir.Instruction instruction, Set<Ir.Block> loop) {
+		if (!isPure(instruction)) return false;
+		for (Ir.Instruction operand : instruction.operands) {
+			if (loop.contains(operand.block)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether an instruction only computes a value from its operands
+	 */
+	private static boolean isPure(Ir.Instruction instruction) {
+		switch (instruction.op) {
+		case Ir.CONSTANT: case Ir.BINARY: case Ir.UNARY:
+			return true;
+		default:
+			return false;
+		}
+	}
+	//< loop-invariant code motion
+
+	//> dead store elimination
+	/**
+	 * Drops field stores overwritten before anything could read them,
+	 * then every value nothing uses whose computation cannot fail
+	 */
+	private void eliminateDeadStores(Ir.Function function) {
+		Set<Ir.Instruction> numbers = numbers(function);
+
+		for (Ir.Block block : function.blocks) {
+			List<Ir.Instruction> instructions = block.instructions;
+			List<Ir.Instruction> dead = new ArrayList<>();
+			for (int i = 0; i < instructions.size(); i++) {
+				Ir.Instruction store = instructions.get(i);
+				if (store.op == Ir.SET && isOverwritten(store, instructions, i + 1, numbers)) {
+					dead.add(store);
+				}
+			}
+			instructions.removeAll(dead);
+		}
+
+		Map<Ir.Instruction, Integer> uses = new IdentityHashMap<>();
+		List<Ir.Instruction> all = new ArrayList<>();
+		for (Ir.Block block : function.blocks) {
+			all.addAll(block.phis);
+			all.addAll(block.instructions);
+		}
+		for (Ir.Instruction instruction : all) {
+			for (Ir.Instruction operand : instruction.operands) {
+				uses.merge(operand, 1, Integer::sum);
+			}
+		}
+
+		List<Ir.Instruction> work = new ArrayList<>(all);
+		while (!work.isEmpty()) {
+			Ir.Instruction instruction = work.remove(work.size() - 1);
+			if (uses.getOrDefault(instruction, 0) > 0 ||
+					!isRemovable(instruction, numbers)) {
+				continue;
+			}
+			if (!instruction.block.phis.remove(instruction) &&
+					!instruction.block.instructions.remove(instruction)) {
+				continue;
+			}
+			for (Ir.Instruction operand : instruction.operands) {
+				uses.merge(operand, -1, Integer::sum);
+				work.add(operand);
+			}
+		}
+	}
+
+	/**
+	 * Whether a later store in the same block replaces what store
+	 * wrote before anything could see it
+	 */
+	private static boolean isOverwritten(Ir.Instruction store,
+			List<Ir.Instruction> instructions, int from, Set<Ir.Instruction> numbers) {
+		Ir.Instruction object = store.operand(0);
+		for (int i = from; i < instructions.size(); i++) {
+			Ir.Instruction next = instructions.get(i);
+			switch (next.op) {
+			case Ir.SET:
+				if (next.token.symbol != store.token.symbol) break;
+				// another instance may be the same one
+				return next.operand(0) == object;
+			case Ir.CHECK_FIELDS:
+				if (next.operand(0) != object) return false;
+				break;
+			case Ir.PRINT:
+				break;
+			default:
+				// a read, a call, or a failure that ends the script
+				if (!cannotFail(next, numbers)) return false;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isRemovable(Ir.Instruction instruction,
+			Set<Ir.Instruction> numbers) {
+		switch (instruction.op) {
+		case Ir.PARAM: case Ir.PHI: case Ir.COPY:
+			return true;
+		default:
+			return cannotFail(instruction, numbers);
+		}
+	}
+	//< dead store elimination
+
+	/**
+	 * Whether an instruction only computes a value, without any way
+	 * to fail
+	 */
+	private static boolean cannotFail(Ir.Instruction instruction,
+			Set<Ir.Instruction> numbers) {
+		switch (instruction.op) {
+		case Ir.CONSTANT:
+			return true;
+		case Ir.UNARY:
+			return instruction.token.type == TokenType.BANG ||
+					numbers.contains(instruction.operand(0));
+		case Ir.BINARY:
+			switch (instruction.token.type) {
+			case EQUAL_EQUAL: case BANG_EQUAL:
+				return true;
+			default:
+				return numbers.contains(instruction.operand(0)) &&
+						numbers.contains(instruction.operand(1));
+			}
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Finds the values that can only ever be numbers: number constants,
+	 * arithmetic on them and phis of them. Phis start out assumed to be
+	 * numbers and are struck off until nothing changes, so a loop
+	 * counter counts.
+	 */
+	private static Set<Ir.Instruction> numbers(Ir.Function function) {
+		Set<Ir.Instruction> numbers = new HashSet<>();
+		for (Ir.Block block : function.blocks) {
+			numbers.addAll(block.phis);
+			for (Ir.Instruction instruction : block.instructions) {
+				switch (instruction.op) {
+				case Ir.CONSTANT:
+					if (instruction.constant instanceof Double) numbers.add(instruction);
+					break;
+				case Ir.UNARY:
+					if (instruction.token.type == TokenType.MINUS) numbers.add(instruction);
+					break;
+				case Ir.BINARY:
+					switch (instruction.token.type) {
+					case MINUS: case STAR: case SLASH: case PLUS:
+						numbers.add(instruction);
+						break;
+					default:
+						break;
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Ir.Block block : function.blocks) {
+				for (Ir.Instruction phi : block.phis) {
+					changed |= strikeUnless(numbers, phi, phi.operands);
+				}
+				for (Ir.Instruction instruction : block.instructions) {
+					// a failed MINUS never produces a value, but a PLUS
+					// of two strings does
+					if (instruction.op == Ir.BINARY &&
+							instruction.token.type == TokenType.PLUS) {
+						changed |= strikeUnless(numbers, instruction, instruction.operands);
+					}
+				}
+			}
+		}
+		return numbers;
+	}
+
+	private static boolean strikeUnless(Set<Ir.Instruction> numbers,
+			Ir.Instruction instruction, List<Ir.Instruction> operands) {
+		if (!numbers.contains(instruction)) return false;
+		for (Ir.Instruction operand : operands) {
+			if (!numbers.contains(operand)) {
+				numbers.remove(instruction);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Ir.Instruction resolve(Ir.Instruction instruction,
+			Map<Ir.Instruction, Ir.Instruction> replacements) {
+		Ir.Instruction replacement = replacements.get(instruction);
+		while (replacement != null) {
+			instruction = replacement;
+			replacement = replacements.get(instruction);
+		}
+		return instruction;
+	}
+
+	private static void replaceUses(Ir.Function function,
+			Map<Ir.Instruction, Ir.Instruction> replacements) {
+		if (replacements.isEmpty()) return;
+		for (Ir.Block block : function.blocks) {
+			for (Ir.Instruction phi : block.phis) replace(phi, replacements);
+			for (Ir.Instruction instruction : block.instructions) {
+				replace(instruction, replacements);
+			}
+		}
+	}
+
+	private static void replace(Ir.Instruction instruction,
+			Map<Ir.Instruction, Ir.Instruction> replacements) {
+		for (int i = 0; i < instruction.operands.size(); i++) {
+			instruction.operands.set(i, resolve(instruction.operands.get(i), replacements));
+		}
+	}
+}
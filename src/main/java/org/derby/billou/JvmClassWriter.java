@@ -0,0 +1,616 @@
+package org.derby.billou;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the bytes of a single JVM class file.
+ *
+ * Only what JvmCompiler needs is supported: static fields, static
+ * methods and invokedynamic. Methods track the types on the operand
+ * stack as instructions are emitted so that a StackMapTable frame can
+ * be produced for every branch target. All locals of a method are
+ * declared before the first label, so frames only differ in their stack.
+ */
+class JvmClassWriter {
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int REF_INVOKE_STATIC = 6;
+
+	private static final int CLASS_VERSION = 61;
+
+	/**
+	 * Thrown when generated code exceeds a class file limit
+	 */
+	static class TooLarge extends RuntimeException {
+		TooLarge(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	private final String name;
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndex = new HashMap<>();
+	private int poolCount = 1;
+
+	private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+	private int fieldCount = 0;
+	private final List<Method> methods = new ArrayList<>();
+	private final ByteArrayOutputStream bootstrapMethods = new ByteArrayOutputStream();
+	private int bootstrapCount = 0;
+
+	/**
+	 * @param name internal name of the class, e.g. org/derby/billou/JvmCode
+	 */
+	JvmClassWriter(String name) {
+		this.name = name;
+	}
+
+	int utf8(String value) {
+		return entry("U" + value, out -> {
+			out.writeByte(1);
+			out.writeUTF(value);
+		}, 1);
+	}
+
+	int classRef(String internalName) {
+		int utf8 = utf8(internalName);
+		return entry("C" + internalName, out -> {
+			out.writeByte(7);
+			out.writeShort(utf8);
+		}, 1);
+	}
+
+	int string(String value) {
+		int utf8 = utf8(value);
+		return entry("S" + value, out -> {
+			out.writeByte(8);
+			out.writeShort(utf8);
+		}, 1);
+	}
+
+	int integer(int value) {
+		return entry("I" + value, out -> {
+			out.writeByte(3);
+			out.writeInt(value);
+		}, 1);
+	}
+
+	int doubleConstant(double value) {
+		return entry("D" + Double.doubleToRawLongBits(value), out -> {
+			out.writeByte(6);
+			out.writeDouble(value);
+		}, 2);
+	}
+
+	int nameAndType(String name, String descriptor) {
+		int nameIndex = utf8(name);
+		int typeIndex = utf8(descriptor);
+		return entry("N" + name + ":" + descriptor, out -> {
+			out.writeByte(12);
+			out.writeShort(nameIndex);
+			out.writeShort(typeIndex);
+		}, 1);
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(9, owner, name, descriptor);
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return memberRef(10, owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nameAndType = nameAndType(name, descriptor);
+		return entry("M" + tag + owner + "." + name + ":" + descriptor, out -> {
+			out.writeByte(tag);
+			out.writeShort(ownerIndex);
+			out.writeShort(nameAndType);
+		}, 1);
+	}
+
+	int methodHandle(int kind, int reference) {
+		return entry("H" + kind + ":" + reference, out -> {
+			out.writeByte(15);
+			out.writeByte(kind);
+			out.writeShort(reference);
+		}, 1);
+	}
+
+	int invokeDynamic(int bootstrapMethod, String name, String descriptor) {
+		int nameAndType = nameAndType(name, descriptor);
+		return entry("Y" + bootstrapMethod + ":" + name + ":" + descriptor, out -> {
+			out.writeByte(18);
+			out.writeShort(bootstrapMethod);
+			out.writeShort(nameAndType);
+		}, 1);
+	}
+
+	/**
+	 * Adds an entry to the BootstrapMethods attribute
+	 * @param handle constant pool index of the bootstrap method handle
+	 * @param arguments constant pool indexes of the static arguments
+	 * @return the index of the bootstrap method
+	 */
+	int bootstrapMethod(int handle, int... arguments) {
+		DataOutputStream out = new DataOutputStream(bootstrapMethods);
+		try {
+			out.writeShort(handle);
+			out.writeShort(arguments.length);
+			for (int argument : arguments) out.writeShort(argument);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bootstrapCount++;
+	}
+
+	void field(int access, String name, String descriptor) {
+		DataOutputStream out = new DataOutputStream(fields);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		fieldCount++;
+	}
+
+	Method method(int access, String name, String descriptor) {
+		Method method = new Method(access, name, descriptor);
+		methods.add(method);
+		return method;
+	}
+
+	/**
+	 * Drops a method whose generation was abandoned
+	 */
+	void discard(Method method) {
+		methods.remove(method);
+	}
+
+	byte[] toBytes() {
+		int thisClass = classRef(name);
+		int superClass = classRef("java/lang/Object");
+		int codeName = utf8("Code");
+		int stackMapName = utf8("StackMapTable");
+		int bootstrapName = bootstrapCount > 0 ? utf8("BootstrapMethods") : 0;
+		List<byte[]> methodBytes = new ArrayList<>();
+		for (Method method : methods) {
+			methodBytes.add(method.toBytes(codeName, stackMapName));
+		}
+
+		if (poolCount > 0xffff) throw new TooLarge("Constant pool too large.");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(CLASS_VERSION);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+
+			out.writeShort(fieldCount);
+			fields.writeTo(out);
+
+			out.writeShort(methodBytes.size());
+			for (byte[] method : methodBytes) out.write(method);
+
+			if (bootstrapCount > 0) {
+				out.writeShort(1);
+				out.writeShort(bootstrapName);
+				out.writeInt(2 + bootstrapMethods.size());
+				out.writeShort(bootstrapCount);
+				bootstrapMethods.writeTo(out);
+			} else {
+				out.writeShort(0);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private interface EntryWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private int entry(String key, EntryWriter writer, int size) {
+		Integer existing = poolIndex.get(key);
+		if (existing != null) return existing;
+
+		try {
+			writer.write(poolOut);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int index = poolCount;
+		poolCount += size;
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	/**
+	 * A position in a method's code that branches can target
+	 */
+	static class Label {
+		int position = -1;
+		// operand stack types on entry, null until first seen
+		String stack;
+		boolean referenced = false;
+		private final List<Integer> fixups = new ArrayList<>();
+	}
+
+	/**
+	 * The code of one method. Stack types are tracked as a string
+	 * with one character per entry: 'A' reference, 'D' double, 'I' int.
+	 */
+	class Method {
+		private final int access;
+		private final String name;
+		private final String descriptor;
+
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private final StringBuilder stack = new StringBuilder();
+		private final StringBuilder locals = new StringBuilder();
+		private int localSlots = 0;
+		private int stackSize = 0;
+		private int maxStack = 0;
+		private boolean reachable = true;
+		private final TreeMap<Integer, String> frames = new TreeMap<>();
+		private final List<Label> labels = new ArrayList<>();
+
+		private Method(int access, String name, String descriptor) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+
+			int index = 1;
+			while (descriptor.charAt(index) != ')') {
+				char type = descriptor.charAt(index);
+				locals.append(type == 'D' ? 'D' : 'A');
+				localSlots += type == 'D' ? 2 : 1;
+				index = skipType(descriptor, index);
+			}
+		}
+
+		/**
+		 * Declares a new local variable
+		 * @param type 'A' or 'D'
+		 * @return its slot
+		 */
+		int newLocal(char type) {
+			int slot = localSlots;
+			locals.append(type);
+			localSlots += type == 'D' ? 2 : 1;
+			return slot;
+		}
+
+		boolean isReachable() {
+			return reachable;
+		}
+
+		void op(int opcode, String pop, String push) {
+			if (!reachable) return;
+			popTypes(pop);
+			code.write(opcode);
+			pushTypes(push);
+		}
+
+		void constantNull() {
+			op(0x01, "", "A");
+		}
+
+		void constant(int value) {
+			if (!reachable) return;
+			if (value >= -1 && value <= 5) {
+				op(0x03 + value, "", "I");
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op(0x10, "", "I");
+				code.write(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(0x11, "", "I");
+				writeShort(value);
+			} else {
+				ldc(integer(value), "I");
+			}
+		}
+
+		void constant(double value) {
+			if (!reachable) return;
+			op(0x14, "", "D");
+			writeShort(doubleConstant(value));
+		}
+
+		void constant(String value) {
+			ldc(string(value), "A");
+		}
+
+		private void ldc(int index, String type) {
+			if (!reachable) return;
+			if (index <= 0xff) {
+				op(0x12, "", type);
+				code.write(index);
+			} else {
+				op(0x13, "", type);
+				writeShort(index);
+			}
+		}
+
+		void load(char type, int slot) {
+			localOp(type == 'D' ? 0x18 : 0x19, slot, "", String.valueOf(type));
+		}
+
+		void store(char type, int slot) {
+			localOp(type == 'D' ? 0x39 : 0x3a, slot, String.valueOf(type), "");
+		}
+
+		private void localOp(int opcode, int slot, String pop, String push) {
+			if (!reachable) return;
+			if (slot > 0xff) {
+				code.write(0xc4);
+				op(opcode, pop, push);
+				writeShort(slot);
+			} else {
+				op(opcode, pop, push);
+				code.write(slot);
+			}
+		}
+
+		void pop() {
+			if (!reachable) return;
+			if (stack.charAt(stack.length() - 1) == 'D') {
+				op(0x58, "D", "");
+			} else {
+				op(0x57, "A", "");
+			}
+		}
+
+		/**
+		 * Duplicates the value on top of the stack
+		 */
+		void dup() {
+			if (!reachable) return;
+			if (stack.charAt(stack.length() - 1) == 'D') {
+				op(0x5c, "D", "DD");
+			} else {
+				char type = stack.charAt(stack.length() - 1);
+				op(0x59, String.valueOf(type), "" + type + type);
+			}
+		}
+
+		void getStatic(String owner, String name, String descriptor) {
+			if (!reachable) return;
+			op(0xb2, "", typeOf(descriptor));
+			writeShort(fieldRef(owner, name, descriptor));
+		}
+
+		void checkCast(String internalName) {
+			if (!reachable) return;
+			op(0xc0, "A", "A");
+			writeShort(classRef(internalName));
+		}
+
+		void invokeStatic(String owner, String name, String descriptor) {
+			invoke(0xb8, methodRef(owner, name, descriptor), descriptor);
+		}
+
+		void invokeDynamic(int callSite, String descriptor) {
+			if (!reachable) return;
+			invoke(0xba, callSite, descriptor);
+			writeShort(0);
+		}
+
+		private void invoke(int opcode, int index, String descriptor) {
+			if (!reachable) return;
+			StringBuilder args = new StringBuilder();
+			int i = 1;
+			while (descriptor.charAt(i) != ')') {
+				args.append(typeOf(descriptor.substring(i)));
+				i = skipType(descriptor, i);
+			}
+			String result = descriptor.charAt(i + 1) == 'V' ? ""
+					: typeOf(descriptor.substring(i + 1));
+			op(opcode, args.toString(), result);
+			writeShort(index);
+		}
+
+		/**
+		 * Emits a conditional or unconditional branch
+		 */
+		void jump(int opcode, Label target) {
+			if (!reachable) return;
+			int start = code.size();
+			op(opcode, opcode == 0xa7 ? "" : "I", "");
+			target.referenced = true;
+			mergeStack(target);
+			if (target.position >= 0) {
+				writeShort(offset(target.position - start));
+			} else {
+				target.fixups.add(start);
+				writeShort(0);
+			}
+			if (opcode == 0xa7) reachable = false;
+		}
+
+		void placeLabel(Label label) {
+			if (reachable) {
+				mergeStack(label);
+			} else if (label.referenced) {
+				stack.setLength(0);
+				stack.append(label.stack);
+				stackSize = slotsOf(label.stack);
+				reachable = true;
+			}
+
+			label.position = code.size();
+			labels.add(label);
+			byte[] bytes = null;
+			for (int fixup : label.fixups) {
+				if (bytes == null) bytes = code.toByteArray();
+				int offset = offset(label.position - fixup);
+				bytes[fixup + 1] = (byte) (offset >> 8);
+				bytes[fixup + 2] = (byte) offset;
+			}
+			if (bytes != null) {
+				code.reset();
+				code.write(bytes, 0, bytes.length);
+			}
+			label.fixups.clear();
+		}
+
+		void returnValue() {
+			op(0xb0, "A", "");
+			reachable = false;
+		}
+
+		void returnVoid() {
+			op(0xb1, "", "");
+			reachable = false;
+		}
+
+		private void mergeStack(Label label) {
+			if (label.stack == null) {
+				label.stack = stack.toString();
+			} else if (!label.stack.equals(stack.toString())) {
+				throw new IllegalStateException("Inconsistent stack at label in " + name);
+			}
+		}
+
+		private int offset(int offset) {
+			if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+				throw new TooLarge("Branch offset too large.");
+			}
+			return offset;
+		}
+
+		private void popTypes(String types) {
+			for (int i = types.length() - 1; i >= 0; i--) {
+				char expected = types.charAt(i);
+				char actual = stack.charAt(stack.length() - 1);
+				if (expected != actual) {
+					throw new IllegalStateException("Expected " + expected +
+							" on the stack but found " + actual + " in " + name);
+				}
+				stack.setLength(stack.length() - 1);
+				stackSize -= actual == 'D' ? 2 : 1;
+			}
+		}
+
+		private void pushTypes(String types) {
+			stack.append(types);
+			stackSize += slotsOf(types);
+			maxStack = Math.max(maxStack, stackSize);
+		}
+
+		private void writeShort(int value) {
+			code.write((value >> 8) & 0xff);
+			code.write(value & 0xff);
+		}
+
+		private byte[] toBytes(int codeName, int stackMapName) {
+			for (Label label : labels) {
+				if (label.referenced) frames.put(label.position, label.stack);
+			}
+			if (code.size() > 0xffff) throw new TooLarge("Method too large.");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				ByteArrayOutputStream stackMap = new ByteArrayOutputStream();
+				DataOutputStream mapOut = new DataOutputStream(stackMap);
+				int previous = -1;
+				for (Map.Entry<Integer, String> frame : frames.entrySet()) {
+					mapOut.writeByte(255);
+					mapOut.writeShort(frame.getKey() - previous - 1);
+					previous = frame.getKey();
+					writeTypes(mapOut, locals.toString());
+					writeTypes(mapOut, frame.getValue());
+				}
+
+				out.writeShort(access);
+				out.writeShort(utf8(name));
+				out.writeShort(utf8(descriptor));
+				out.writeShort(1);
+
+				out.writeShort(codeName);
+				int stackMapLength = frames.isEmpty() ? 0 : 8 + stackMap.size();
+				out.writeInt(12 + code.size() + stackMapLength);
+				out.writeShort(maxStack);
+				out.writeShort(localSlots);
+				out.writeInt(code.size());
+				code.writeTo(out);
+				out.writeShort(0);
+				if (frames.isEmpty()) {
+					out.writeShort(0);
+				} else {
+					out.writeShort(1);
+					out.writeShort(stackMapName);
+					out.writeInt(2 + stackMap.size());
+					out.writeShort(frames.size());
+					stackMap.writeTo(out);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return bytes.toByteArray();
+		}
+
+		private void writeTypes(DataOutputStream out, String types) throws IOException {
+			out.writeShort(types.length());
+			for (int i = 0; i < types.length(); i++) {
+				switch (types.charAt(i)) {
+				case 'I': out.writeByte(1); break;
+				case 'D': out.writeByte(3); break;
+				default:
+					out.writeByte(7);
+					out.writeShort(classRef("java/lang/Object"));
+				}
+			}
+		}
+	}
+
+	private static int skipType(String descriptor, int index) {
+		while (descriptor.charAt(index) == '[') index++;
+		if (descriptor.charAt(index) == 'L') {
+			return descriptor.indexOf(';', index) + 1;
+		}
+		return index + 1;
+	}
+
+	private static String typeOf(String descriptor) {
+		switch (descriptor.charAt(0)) {
+		case 'D': return "D";
+		case 'Z': case 'I': case 'B': case 'C': case 'S': return "I";
+		default: return "A";
+		}
+	}
+
+	private static int slotsOf(String types) {
+		int slots = 0;
+		for (int i = 0; i < types.length(); i++) {
+			slots += types.charAt(i) == 'D' ? 2 : 1;
+		}
+		return slots;
+	}
+}
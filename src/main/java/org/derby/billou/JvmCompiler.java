@@ -0,0 +1,882 @@
+package org.derby.billou;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles Billou functions and top-level statements into JVM
+ * bytecode so HotSpot can JIT them.
+ *
+ * Each function becomes a static method of its own hidden class,
+ * with Billou locals as JVM locals. A local that is only ever
+ * assigned numbers is kept as an unboxed double. Calls go through
+ * invokedynamic sites that link straight to other compiled functions.
+ *
+ * Only functions whose free variables are all globals and that
+ * don't declare functions or classes or use this/super are compiled;
+ * everything else keeps running on the Interpreter. At the top level
+ * each statement is compiled on its own, so unsupported statements
+ * are simply handed back to the Interpreter.
+ */
+class JvmCompiler implements Expression.Visitor<Character>, Statement.Visitor<Void> {
+	private static final String CLASS_NAME = "org/derby/billou/JvmCode";
+	private static final String RUNTIME = "org/derby/billou/JvmRuntime";
+	private static final String OBJECT = "Ljava/lang/Object;";
+	private static final String TOKEN = "Lorg/derby/billou/Token;";
+	private static final String INTERPRETER = "Lorg/derby/billou/Interpreter;";
+
+	// largest argument count that is passed through invokedynamic
+	private static final int MAX_DYNAMIC_ARGUMENTS = 200;
+
+	private static final Object UNSUPPORTED = new Object();
+
+	/**
+	 * Thrown when a construct can't be compiled yet
+	 */
+	private static class Unsupported extends RuntimeException {
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * A Billou variable stored in a JVM local
+	 */
+	private static class Local {
+		// 'D' for an unboxed double, 'A' for a reference
+		char type;
+		int slot;
+
+		Local(char type) {
+			this.type = type;
+		}
+	}
+
+	private final Interpreter interpreter;
+
+	// compiled handle, or UNSUPPORTED, of every function seen so far
+	private final Map<Statement.Function, Object> functions = new IdentityHashMap<>();
+
+	// state of the class and method being generated
+	private JvmClassWriter writer;
+	private JvmClassWriter.Method method;
+	private List<Object> constants;
+	private Map<Object, Integer> constantIndex;
+	private final Map<Statement.Var, Local> declarations = new IdentityHashMap<>();
+	private final Map<Expression, Local> accesses = new IdentityHashMap<>();
+	private final List<Local> allLocals = new ArrayList<>();
+	private final List<Local> writes = new ArrayList<>();
+	private final List<Expression> writeValues = new ArrayList<>();
+
+	JvmCompiler(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * Compiles a function declaration
+	 * @return the compiled function, or null if it has to be interpreted
+	 */
+	JvmFunction compile(Statement.Function function) {
+		Object compiled = functions.get(function);
+		if (compiled == null) {
+			compiled = compileFunction(function);
+			functions.put(function, compiled);
+		}
+
+		if (compiled == UNSUPPORTED) return null;
+		return new JvmFunction(function, (MethodHandle) compiled);
+	}
+
+	/**
+	 * Compiles each top-level statement into its own method
+	 * @return a ()V handle per statement, null where the
+	 * statement has to be interpreted
+	 */
+	MethodHandle[] compileScript(List<Statement> statements) {
+		startClass();
+		List<JvmClassWriter.Method> methods = new ArrayList<>();
+		for (int i = 0; i < statements.size(); i++) {
+			JvmClassWriter.Method statementMethod = null;
+			try {
+				analyze(Collections.emptyList(),
+						Collections.singletonList(statements.get(i)), true);
+				statementMethod = startMethod("statement" + i, "()V");
+				compile(statements.get(i));
+				method.returnVoid();
+			} catch (Unsupported | JvmClassWriter.TooLarge e) {
+				if (statementMethod != null) writer.discard(statementMethod);
+				statementMethod = null;
+			}
+			methods.add(statementMethod);
+		}
+
+		MethodHandle[] handles = new MethodHandle[statements.size()];
+		MethodHandles.Lookup lookup = defineClass();
+		if (lookup == null) return handles;
+
+		for (int i = 0; i < handles.length; i++) {
+			if (methods.get(i) == null) continue;
+			handles[i] = findStatic(lookup, "statement" + i, MethodType.methodType(void.class));
+		}
+		return handles;
+	}
+
+	/**
+	 * Runs a compiled top-level statement
+	 */
+	static void run(MethodHandle statement) {
+		try {
+			statement.invokeExact();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Object compileFunction(Statement.Function function) {
+		int arity = function.params.size();
+		if (arity > MAX_DYNAMIC_ARGUMENTS) return UNSUPPORTED;
+
+		StringBuilder descriptor = new StringBuilder("(");
+		for (int i = 0; i < arity; i++) descriptor.append(OBJECT);
+		descriptor.append(")").append(OBJECT);
+
+		try {
+			startClass();
+			analyze(function.params, function.body(), false);
+			startMethod("run", descriptor.toString());
+			for (Statement statement : function.body()) {
+				compile(statement);
+			}
+			if (method.isReachable()) {
+				method.constantNull();
+				method.returnValue();
+			}
+		} catch (Unsupported | JvmClassWriter.TooLarge e) {
+			return UNSUPPORTED;
+		}
+
+		MethodHandles.Lookup lookup = defineClass();
+		if (lookup == null) return UNSUPPORTED;
+
+		MethodType type = MethodType.genericMethodType(arity);
+		MethodHandle handle = findStatic(lookup, "run", type);
+		return handle != null ? handle : UNSUPPORTED;
+	}
+
+	private void startClass() {
+		writer = new JvmClassWriter(CLASS_NAME);
+		writer.field(JvmClassWriter.ACC_STATIC, "K", "[Ljava/lang/Object;");
+		constants = new ArrayList<>();
+		constantIndex = new IdentityHashMap<>();
+		constant(interpreter);
+	}
+
+	private JvmClassWriter.Method startMethod(String name, String descriptor) {
+		method = writer.method(JvmClassWriter.ACC_STATIC, name, descriptor);
+
+		// declare and clear every local up front so all frames share one layout
+		for (Local local : allLocals) {
+			if (local.slot >= 0) continue;
+			local.slot = method.newLocal(local.type);
+			if (local.type == 'D') {
+				method.constant(0.0);
+			} else {
+				method.constantNull();
+			}
+			method.store(local.type, local.slot);
+		}
+		return method;
+	}
+
+	private MethodHandles.Lookup defineClass() {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClass(writer.toBytes(), true);
+			lookup.findStaticSetter(lookup.lookupClass(), "K", Object[].class)
+					.invoke(constants.toArray());
+			return lookup;
+		} catch (JvmClassWriter.TooLarge e) {
+			return null;
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		} finally {
+			writer = null;
+			method = null;
+		}
+	}
+
+	private MethodHandle findStatic(MethodHandles.Lookup lookup, String name, MethodType type) {
+		try {
+			return lookup.findStatic(lookup.lookupClass(), name, type);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//> analysis
+
+	/**
+	 * Binds every variable access in the body to a Local, rejects
+	 * unsupported constructs and decides which locals can be doubles
+	 * @param topLevel whether the body runs in the global scope
+	 */
+	private void analyze(List<Token> params, List<Statement> body, boolean topLevel) {
+		declarations.clear();
+		accesses.clear();
+		allLocals.clear();
+		writes.clear();
+		writeValues.clear();
+
+		Analyzer analyzer = new Analyzer();
+		if (!topLevel) analyzer.scopes.push(new HashMap<>());
+
+		int slot = 0;
+		for (Token param : params) {
+			Local local = new Local('A');
+			local.slot = slot++;
+			analyzer.scopes.peek().put(param.lexeme(), local);
+		}
+
+		for (Statement statement : body) {
+			statement.accept(analyzer);
+		}
+
+		// demote locals until every write agrees with its local's type
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < writes.size(); i++) {
+				Local local = writes.get(i);
+				Expression value = writeValues.get(i);
+				if (local.type == 'D' && (value == null || typeOf(value) != 'D')) {
+					local.type = 'A';
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private class Analyzer implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+		final Deque<Map<String, Local>> scopes = new ArrayDeque<>();
+
+		private void resolve(Expression expression, Token name) {
+			for (Map<String, Local> scope : scopes) {
+				Local local = scope.get(name.lexeme());
+				if (local != null) {
+					accesses.put(expression, local);
+					return;
+				}
+			}
+
+			// anything not declared here must be a global
+			if (((Expression.VariableAccess) expression).depth >= 0) {
+				throw new Unsupported();
+			}
+		}
+
+		@Override
+		public Void visitBlockStmt(Statement.Block stmt) {
+			scopes.push(new HashMap<>());
+			for (Statement statement : stmt.statements) {
+				statement.accept(this);
+			}
+			scopes.pop();
+			return null;
+		}
+
+		@Override
+		public Void visitClassStmt(Statement.Class stmt) {
+			throw new Unsupported();
+		}
+
+		@Override
+		public Void visitExpressionStmt(Statement.Expression stmt) {
+			stmt.expression.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionStmt(Statement.Function stmt) {
+			throw new Unsupported();
+		}
+
+		@Override
+		public Void visitIfStmt(Statement.If stmt) {
+			stmt.condition.accept(this);
+			stmt.thenBranch.accept(this);
+			if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitPrintStmt(Statement.Print stmt) {
+			stmt.expression.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitReturnStmt(Statement.Return stmt) {
+			// the tree walker runs tail calls without using up the Java stack
+			if (stmt.isTailCall) throw new Unsupported();
+			if (stmt.value != null) stmt.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitVarStmt(Statement.Var stmt) {
+			if (stmt.initializer != null) stmt.initializer.accept(this);
+			if (scopes.isEmpty()) return null;
+
+			Local local = new Local('D');
+			local.slot = -1;
+			allLocals.add(local);
+			declarations.put(stmt, local);
+			writes.add(local);
+			writeValues.add(stmt.initializer);
+			scopes.peek().put(stmt.name.lexeme(), local);
+			return null;
+		}
+
+		@Override
+		public Void visitForStmt(Statement.For stmt) {
+			if (stmt.declares()) scopes.push(new HashMap<>());
+			if (stmt.initializer != null) stmt.initializer.accept(this);
+			if (stmt.condition != null) stmt.condition.accept(this);
+			stmt.body.accept(this);
+			if (stmt.increment != null) stmt.increment.accept(this);
+			if (stmt.declares()) scopes.pop();
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStmt(Statement.While stmt) {
+			stmt.condition.accept(this);
+			stmt.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitAssignExpr(Expression.Assign expr) {
+			expr.value.accept(this);
+			resolve(expr, expr.name);
+
+			Local local = accesses.get(expr);
+			if (local != null) {
+				writes.add(local);
+				writeValues.add(expr.value);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitBinaryExpr(Expression.Binary expr) {
+			expr.left.accept(this);
+			expr.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitCallExpr(Expression.Call expr) {
+			if (expr.arguments.size() > MAX_DYNAMIC_ARGUMENTS) throw new Unsupported();
+
+			expr.callee.accept(this);
+			for (Expression argument : expr.arguments) {
+				argument.accept(this);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitGetExpr(Expression.Get expr) {
+			expr.object.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitGroupingExpr(Expression.Grouping expr) {
+			expr.expression.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitLiteralExpr(Expression.Literal expr) {
+			return null;
+		}
+
+		@Override
+		public Void visitLogicalExpr(Expression.Logical expr) {
+			expr.left.accept(this);
+			expr.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitSetExpr(Expression.Set expr) {
+			expr.object.accept(this);
+			expr.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitSuperExpr(Expression.Super expr) {
+			throw new Unsupported();
+		}
+
+		@Override
+		public Void visitThisExpr(Expression.This expr) {
+			throw new Unsupported();
+		}
+
+		@Override
+		public Void visitUnaryExpr(Expression.Unary expr) {
+			expr.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitVariableExpr(Expression.Variable expr) {
+			resolve(expr, expr.name);
+			return null;
+		}
+	}
+
+	/**
+	 * The type the generated code leaves on the stack for an expression
+	 */
+	private char typeOf(Expression expression) {
+		if (expression instanceof Expression.Literal) {
+			return ((Expression.Literal) expression).value instanceof Double ? 'D' : 'A';
+		}
+		if (expression instanceof Expression.Grouping) {
+			return typeOf(((Expression.Grouping) expression).expression);
+		}
+		if (expression instanceof Expression.Variable ||
+				expression instanceof Expression.Assign) {
+			Local local = accesses.get(expression);
+			return local != null ? local.type : 'A';
+		}
+		if (expression instanceof Expression.Unary) {
+			Expression.Unary unary = (Expression.Unary) expression;
+			if (unary.operator.type == TokenType.MINUS) return typeOf(unary.right);
+			return 'A';
+		}
+		if (expression instanceof Expression.Binary) {
+			Expression.Binary binary = (Expression.Binary) expression;
+			switch (binary.operator.type) {
+			case PLUS:
+			case MINUS:
+			case STAR:
+			case SLASH:
+				if (typeOf(binary.left) == 'D' && typeOf(binary.right) == 'D') return 'D';
+			}
+		}
+		return 'A';
+	}
+	//< analysis
+
+	//> code generation
+
+	@Override
+	public Void visitBlockStmt(Statement.Block stmt) {
+		for (Statement statement : stmt.statements) {
+			compile(statement);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Statement.Class stmt) {
+		throw new Unsupported();
+	}
+
+	@Override
+	public Void visitExpressionStmt(Statement.Expression stmt) {
+		compile(stmt.expression);
+		method.pop();
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Statement.Function stmt) {
+		throw new Unsupported();
+	}
+
+	@Override
+	public Void visitIfStmt(Statement.If stmt) {
+		JvmClassWriter.Label elseLabel = new JvmClassWriter.Label();
+		JvmClassWriter.Label end = new JvmClassWriter.Label();
+
+		branch(stmt.condition, false, elseLabel);
+		compile(stmt.thenBranch);
+		method.jump(0xa7, end);
+
+		method.placeLabel(elseLabel);
+		if (stmt.elseBranch != null) compile(stmt.elseBranch);
+		method.placeLabel(end);
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Statement.Print stmt) {
+		compileBoxed(stmt.expression);
+		method.invokeStatic(RUNTIME, "print", "(" + OBJECT + ")V");
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Statement.Return stmt) {
+		if (stmt.value != null) {
+			compileBoxed(stmt.value);
+		} else {
+			method.constantNull();
+		}
+		method.returnValue();
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Statement.Var stmt) {
+		Local local = declarations.get(stmt);
+		if (local == null) {
+			if (stmt.initializer != null) {
+				compileBoxed(stmt.initializer);
+			} else {
+				method.constantNull();
+			}
+			loadConstant(stmt.name, TOKEN);
+			loadConstant(interpreter, INTERPRETER);
+			method.invokeStatic(RUNTIME, "defineGlobal",
+					"(" + OBJECT + TOKEN + INTERPRETER + ")V");
+			return null;
+		}
+
+		if (local.type == 'D') {
+			compileDouble(stmt.initializer);
+		} else if (stmt.initializer != null) {
+			compileBoxed(stmt.initializer);
+		} else {
+			method.constantNull();
+		}
+		method.store(local.type, local.slot);
+		return null;
+	}
+
+	@Override
+	public Void visitForStmt(Statement.For stmt) {
+		JvmClassWriter.Label start = new JvmClassWriter.Label();
+		JvmClassWriter.Label end = new JvmClassWriter.Label();
+
+		if (stmt.initializer != null) compile(stmt.initializer);
+		method.placeLabel(start);
+		if (stmt.condition != null) branch(stmt.condition, false, end);
+		compile(stmt.body);
+		if (stmt.increment != null) {
+			compile(stmt.increment);
+			method.pop();
+		}
+		method.jump(0xa7, start);
+		method.placeLabel(end);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Statement.While stmt) {
+		JvmClassWriter.Label start = new JvmClassWriter.Label();
+		JvmClassWriter.Label end = new JvmClassWriter.Label();
+
+		method.placeLabel(start);
+		branch(stmt.condition, false, end);
+		compile(stmt.body);
+		method.jump(0xa7, start);
+		method.placeLabel(end);
+		return null;
+	}
+
+	@Override
+	public Character visitAssignExpr(Expression.Assign expr) {
+		Local local = accesses.get(expr);
+		if (local == null) {
+			compileBoxed(expr.value);
+			loadConstant(expr.name, TOKEN);
+			loadConstant(interpreter, INTERPRETER);
+			method.invokeStatic(RUNTIME, "assignGlobal",
+					"(" + OBJECT + TOKEN + INTERPRETER + ")" + OBJECT);
+			return 'A';
+		}
+
+		if (local.type == 'D') {
+			compileDouble(expr.value);
+		} else {
+			compileBoxed(expr.value);
+		}
+		method.dup();
+		method.store(local.type, local.slot);
+		return local.type;
+	}
+
+	@Override
+	public Character visitBinaryExpr(Expression.Binary expr) {
+		if (typeOf(expr.left) == 'D' && typeOf(expr.right) == 'D') {
+			compileDouble(expr.left);
+			compileDouble(expr.right);
+
+			switch (expr.operator.type) {
+			case PLUS: method.op(0x63, "DD", "D"); return 'D';
+			case MINUS: method.op(0x67, "DD", "D"); return 'D';
+			case STAR: method.op(0x6b, "DD", "D"); return 'D';
+			case SLASH: method.op(0x6f, "DD", "D"); return 'D';
+			case EQUAL_EQUAL: return compare("equal");
+			case BANG_EQUAL: return compare("notEqual");
+			case GREATER: return compare("greater");
+			case GREATER_EQUAL: return compare("greaterEqual");
+			case LESS: return compare("less");
+			case LESS_EQUAL: return compare("lessEqual");
+			}
+		}
+
+		compileBoxed(expr.left);
+		compileBoxed(expr.right);
+		loadConstant(expr.operator, TOKEN);
+		method.invokeStatic(RUNTIME, "binary",
+				"(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT);
+		return 'A';
+	}
+
+	private char compare(String helper) {
+		method.invokeStatic(RUNTIME, helper, "(DD)" + OBJECT);
+		return 'A';
+	}
+
+	@Override
+	public Character visitCallExpr(Expression.Call expr) {
+		compileBoxed(expr.callee);
+		StringBuilder descriptor = new StringBuilder("(").append(OBJECT);
+		for (Expression argument : expr.arguments) {
+			compileBoxed(argument);
+			descriptor.append(OBJECT);
+		}
+		descriptor.append(")").append(OBJECT);
+
+		int bootstrap = writer.bootstrapMethod(
+				writer.methodHandle(JvmClassWriter.REF_INVOKE_STATIC,
+						writer.methodRef(RUNTIME, "bootstrap",
+								"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;" +
+								"Ljava/lang/invoke/MethodType;I)Ljava/lang/invoke/CallSite;")),
+				writer.integer(constant(expr.paren)));
+		method.invokeDynamic(writer.invokeDynamic(bootstrap, "call",
+				descriptor.toString()), descriptor.toString());
+		return 'A';
+	}
+
+	@Override
+	public Character visitGetExpr(Expression.Get expr) {
+		compileBoxed(expr.object);
+		loadConstant(expr.name, TOKEN);
+		method.invokeStatic(RUNTIME, "get", "(" + OBJECT + TOKEN + ")" + OBJECT);
+		return 'A';
+	}
+
+	@Override
+	public Character visitGroupingExpr(Expression.Grouping expr) {
+		return compile(expr.expression);
+	}
+
+	@Override
+	public Character visitLiteralExpr(Expression.Literal expr) {
+		Object value = expr.value;
+		if (value == null) {
+			method.constantNull();
+		} else if (value instanceof Double) {
+			method.constant((double) value);
+			return 'D';
+		} else if (value instanceof String) {
+			method.constant((String) value);
+		} else {
+			method.getStatic("java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE",
+					"Ljava/lang/Boolean;");
+		}
+		return 'A';
+	}
+
+	@Override
+	public Character visitLogicalExpr(Expression.Logical expr) {
+		JvmClassWriter.Label end = new JvmClassWriter.Label();
+
+		compileBoxed(expr.left);
+		method.dup();
+		method.invokeStatic(RUNTIME, "isTruthy", "(" + OBJECT + ")Z");
+		method.jump(expr.operator.type == TokenType.OR ? 0x9a : 0x99, end);
+		method.pop();
+		compileBoxed(expr.right);
+		method.placeLabel(end);
+		return 'A';
+	}
+
+	@Override
+	public Character visitSetExpr(Expression.Set expr) {
+		compileBoxed(expr.object);
+		loadConstant(expr.name, TOKEN);
+		method.invokeStatic(RUNTIME, "checkFields", "(" + OBJECT + TOKEN + ")" + OBJECT);
+		compileBoxed(expr.value);
+		loadConstant(expr.name, TOKEN);
+		method.invokeStatic(RUNTIME, "set", "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT);
+		return 'A';
+	}
+
+	@Override
+	public Character visitSuperExpr(Expression.Super expr) {
+		throw new Unsupported();
+	}
+
+	@Override
+	public Character visitThisExpr(Expression.This expr) {
+		throw new Unsupported();
+	}
+
+	@Override
+	public Character visitUnaryExpr(Expression.Unary expr) {
+		if (expr.operator.type == TokenType.MINUS && typeOf(expr.right) == 'D') {
+			compileDouble(expr.right);
+			method.op(0x77, "D", "D");
+			return 'D';
+		}
+
+		compileBoxed(expr.right);
+		if (expr.operator.type == TokenType.BANG) {
+			method.invokeStatic(RUNTIME, "not", "(" + OBJECT + ")" + OBJECT);
+		} else {
+			loadConstant(expr.operator, TOKEN);
+			method.invokeStatic(RUNTIME, "unary", "(" + OBJECT + TOKEN + ")" + OBJECT);
+		}
+		return 'A';
+	}
+
+	@Override
+	public Character visitVariableExpr(Expression.Variable expr) {
+		Local local = accesses.get(expr);
+		if (local == null) {
+			loadConstant(expr.name, TOKEN);
+			loadConstant(interpreter, INTERPRETER);
+			method.invokeStatic(RUNTIME, "getGlobal",
+					"(" + TOKEN + INTERPRETER + ")" + OBJECT);
+			return 'A';
+		}
+
+		method.load(local.type, local.slot);
+		return local.type;
+	}
+
+	private void compile(Statement statement) {
+		statement.accept(this);
+	}
+
+	private char compile(Expression expression) {
+		return expression.accept(this);
+	}
+
+	private void compileBoxed(Expression expression) {
+		if (compile(expression) == 'D') {
+			method.invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+		}
+	}
+
+	private void compileDouble(Expression expression) {
+		if (compile(expression) != 'D') {
+			throw new IllegalStateException("Expected a number expression.");
+		}
+	}
+
+	/**
+	 * Emits a jump to target taken when the condition's
+	 * truthiness equals when
+	 */
+	private void branch(Expression condition, boolean when, JvmClassWriter.Label target) {
+		if (condition instanceof Expression.Grouping) {
+			branch(((Expression.Grouping) condition).expression, when, target);
+			return;
+		}
+
+		if (condition instanceof Expression.Unary &&
+				((Expression.Unary) condition).operator.type == TokenType.BANG) {
+			branch(((Expression.Unary) condition).right, !when, target);
+			return;
+		}
+
+		if (condition instanceof Expression.Logical) {
+			Expression.Logical logical = (Expression.Logical) condition;
+			boolean isOr = logical.operator.type == TokenType.OR;
+			if (isOr == when) {
+				branch(logical.left, when, target);
+				branch(logical.right, when, target);
+			} else {
+				JvmClassWriter.Label skip = new JvmClassWriter.Label();
+				branch(logical.left, !when, skip);
+				branch(logical.right, when, target);
+				method.placeLabel(skip);
+			}
+			return;
+		}
+
+		if (condition instanceof Expression.Binary) {
+			Expression.Binary binary = (Expression.Binary) condition;
+			if (typeOf(binary.left) == 'D' && typeOf(binary.right) == 'D') {
+				int compare = 0;
+				int jumpIfTrue = 0;
+				int jumpIfFalse = 0;
+				switch (binary.operator.type) {
+				case LESS: compare = 0x98; jumpIfTrue = 0x9b; jumpIfFalse = 0x9c; break;
+				case LESS_EQUAL: compare = 0x98; jumpIfTrue = 0x9e; jumpIfFalse = 0x9d; break;
+				case GREATER: compare = 0x97; jumpIfTrue = 0x9d; jumpIfFalse = 0x9e; break;
+				case GREATER_EQUAL: compare = 0x97; jumpIfTrue = 0x9c; jumpIfFalse = 0x9b; break;
+				}
+
+				if (compare != 0) {
+					compileDouble(binary.left);
+					compileDouble(binary.right);
+					method.op(compare, "DD", "I");
+					method.jump(when ? jumpIfTrue : jumpIfFalse, target);
+					return;
+				}
+			}
+		}
+
+		compileBoxed(condition);
+		method.invokeStatic(RUNTIME, "isTruthy", "(" + OBJECT + ")Z");
+		method.jump(when ? 0x9a : 0x99, target);
+	}
+
+	private int constant(Object value) {
+		Integer index = constantIndex.get(value);
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndex.put(value, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Pushes an entry of the class's constant array
+	 * @param descriptor the type to cast the entry to
+	 */
+	private void loadConstant(Object value, String descriptor) {
+		method.getStatic(CLASS_NAME, "K", "[Ljava/lang/Object;");
+		method.constant(constant(value));
+		method.op(0x32, "AI", "A");
+		method.checkCast(descriptor.substring(1, descriptor.length() - 1));
+	}
+	//< code generation
+}
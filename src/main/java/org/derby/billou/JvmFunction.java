@@ -0,0 +1,43 @@
+package org.derby.billou;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+/**
+ * A Billou function compiled to a static method of a hidden class
+ */
+class JvmFunction implements BillouCallable {
+	private final Statement.Function declaration;
+
+	// (Object...)Object taking one argument per parameter
+	final MethodHandle handle;
+	private final MethodHandle spreader;
+
+	JvmFunction(Statement.Function declaration, MethodHandle handle) {
+		this.declaration = declaration;
+		this.handle = handle;
+		this.spreader = handle.asSpreader(Object[].class,
+				declaration.params.size());
+	}
+
+	@Override
+	public int arity() {
+		return declaration.params.size();
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, List<Object> arguments) {
+		try {
+			return (Object) spreader.invokeExact(arguments.toArray());
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "<fn " + declaration.name.lexeme() + ">";
+	}
+}
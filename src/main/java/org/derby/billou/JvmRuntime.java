@@ -0,0 +1,205 @@
+package org.derby.billou;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+/**
+ * Static entry points called from code generated by JvmCompiler.
+ * Operations on values of unknown type delegate to the same
+ * Interpreter methods the tree-walker uses, so compiled and
+ * interpreted code behave identically.
+ */
+final class JvmRuntime {
+	private JvmRuntime() {}
+
+	static Object binary(Object left, Object right, Token operator) {
+		return Interpreter.binary(operator, left, right);
+	}
+
+	static Object unary(Object right, Token operator) {
+		return Interpreter.unary(operator, right);
+	}
+
+	static Object not(Object right) {
+		return !Interpreter.isTruthy(right);
+	}
+
+	static boolean isTruthy(Object value) {
+		return Interpreter.isTruthy(value);
+	}
+
+	static Object equal(double left, double right) {
+		return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+	}
+
+	static Object notEqual(double left, double right) {
+		return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+	}
+
+	static Object greater(double left, double right) {
+		return left > right;
+	}
+
+	static Object greaterEqual(double left, double right) {
+		return left >= right;
+	}
+
+	static Object less(double left, double right) {
+		return left < right;
+	}
+
+	static Object lessEqual(double left, double right) {
+		return left <= right;
+	}
+
+	static void print(Object value) {
+		System.out.println(Interpreter.stringify(value));
+	}
+
+	static Object getGlobal(Token name, Interpreter interpreter) {
+		return interpreter.globals.get(name);
+	}
+
+	static Object assignGlobal(Object value, Token name, Interpreter interpreter) {
+		interpreter.globals.assign(name, value);
+		return value;
+	}
+
+	static void defineGlobal(Object value, Token name, Interpreter interpreter) {
+		interpreter.globals.define(name.symbol, value);
+	}
+
+	static Object get(Object object, Token name) {
+		if (object instanceof BillouInstance) {
+			return ((BillouInstance) object).get(name);
+		}
+
+		throw new RuntimeError(name,
+				"Only instances have properties.");
+	}
+
+	static Object checkFields(Object object, Token name) {
+		if (!(object instanceof BillouInstance)) {
+			throw new RuntimeError(name,
+					"Only instances have fields.");
+		}
+		return object;
+	}
+
+	static Object set(Object object, Object value, Token name) {
+		((BillouInstance) object).set(name, value);
+		return value;
+	}
+
+	/**
+	 * Links an invokedynamic call site. The static argument is the
+	 * index of the call's closing parenthesis in the generated
+	 * class's constant array, whose first entry is the Interpreter.
+	 */
+	static CallSite bootstrap(MethodHandles.Lookup caller, String name,
+			MethodType type, int paren) throws Throwable {
+		Object[] constants = (Object[]) caller.findStaticGetter(
+				caller.lookupClass(), "K", Object[].class).invokeExact();
+		return new InlineCache(type, (Interpreter) constants[0],
+				(Token) constants[paren]);
+	}
+
+	private static final MethodHandle DISPATCH;
+	private static final MethodHandle IS_SAME;
+	private static final MethodHandle ENTER;
+	private static final MethodHandle EXIT;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			DISPATCH = lookup.findStatic(JvmRuntime.class, "dispatch",
+					MethodType.methodType(Object.class, InlineCache.class, Object[].class));
+			IS_SAME = lookup.findStatic(JvmRuntime.class, "isSame",
+					MethodType.methodType(boolean.class, Object.class, Object.class));
+			ENTER = lookup.findStatic(JvmRuntime.class, "enter",
+					MethodType.methodType(void.class, InlineCache.class));
+			EXIT = lookup.findStatic(JvmRuntime.class, "exit",
+					MethodType.methodType(Object.class, InlineCache.class,
+							Throwable.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * A call site that links directly to the compiled functions it
+	 * sees, guarded by the identity of the callee. Other callees, and
+	 * compiled ones once the site has seen too many, go through the
+	 * Interpreter's generic call path.
+	 */
+	static final class InlineCache extends MutableCallSite {
+		private static final int MAX_TARGETS = 4;
+
+		final Interpreter interpreter;
+		final Token paren;
+		int targets = 0;
+
+		InlineCache(MethodType type, Interpreter interpreter, Token paren) {
+			super(type);
+			this.interpreter = interpreter;
+			this.paren = paren;
+			setTarget(DISPATCH.bindTo(this)
+					.asCollector(Object[].class, type.parameterCount())
+					.asType(type));
+		}
+	}
+
+	private static Object dispatch(InlineCache site, Object[] values) {
+		Object callee = values[0];
+		Object[] arguments = Arrays.copyOfRange(values, 1, values.length);
+
+		if (callee instanceof JvmFunction && site.targets < InlineCache.MAX_TARGETS &&
+				((JvmFunction) callee).arity() == arguments.length) {
+			site.targets++;
+			MethodHandle target = MethodHandles.dropArguments(
+					((JvmFunction) callee).handle, 0, Object.class);
+			// counted like any other call, inside the guard
+			target = MethodHandles.foldArguments(
+					MethodHandles.tryFinally(target, EXIT.bindTo(site)),
+					ENTER.bindTo(site));
+			site.setTarget(MethodHandles.guardWithTest(
+					IS_SAME.bindTo(callee), target, site.getTarget()));
+		}
+
+		enter(site);
+		try {
+			return site.interpreter.call(callee, Arrays.asList(arguments), site.paren);
+		} catch (StackOverflowError error) {
+			// the Java stack ran out before the depth limit was reached
+			throw new RuntimeError(site.paren, "Stack overflow.");
+		} finally {
+			site.interpreter.exitCall();
+		}
+	}
+
+	private static void enter(InlineCache site) {
+		site.interpreter.enterCall(site.paren);
+	}
+
+	/**
+	 * Ends a call linked straight to a compiled function, like the
+	 * finally block of dispatch
+	 * @param error what the call threw, rethrown afterwards, or null
+	 * @return the call's result
+	 */
+	private static Object exit(InlineCache site, Throwable error, Object result) {
+		site.interpreter.exitCall();
+		if (error instanceof StackOverflowError) {
+			throw new RuntimeError(site.paren, "Stack overflow.");
+		}
+		return result;
+	}
+
+	private static boolean isSame(Object expected, Object actual) {
+		return expected == actual;
+	}
+}
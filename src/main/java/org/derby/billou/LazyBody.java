@@ -0,0 +1,44 @@
+package org.derby.billou;
+
+import java.util.List;
+
+/**
+ * The tokens of a function body the Parser only brace-matched at load
+ * time. The body is parsed, resolved and optimized the first time it
+ * is used, so a run pays for the functions it calls and not for every
+ * one a script defines.
+ *
+ * Only functions and methods declared at the top level are skipped,
+ * since their bodies resolve the same wherever they are parsed from.
+ */
+final class LazyBody {
+	private List<Token> tokens;
+	// set by the Resolver: whether this is a method, and of a subclass
+	private boolean method;
+	private boolean subclass;
+
+	LazyBody(List<Token> tokens) {
+		this.tokens = tokens;
+	}
+
+	void declaredIn(boolean method, boolean subclass) {
+		this.method = method;
+		this.subclass = subclass;
+	}
+
+	List<Statement> compile(Statement.Function function) {
+		List<Statement> body = new Parser(tokens.iterator()).body();
+		if (!Billou.hadError) {
+			new Resolver().resolveBody(function, body, method, subclass);
+		}
+
+		// the errors are reported; the program can't go on without the body
+		if (Billou.hadError) {
+			throw new RuntimeError(function.name,
+					"Could not compile '" + function.name.lexeme() + "'.");
+		}
+
+		tokens = null;
+		return new Optimizer().optimize(body);
+	}
+}
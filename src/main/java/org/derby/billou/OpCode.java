@@ -0,0 +1,52 @@
+package org.derby.billou;
+
+/**
+ * The instruction set of the bytecode VM.
+ * Each instruction is one byte followed by its operands;
+ * constant indexes and jump offsets take two bytes.
+ */
+final class OpCode {
+	private OpCode() {}
+
+	static final byte CONSTANT = 0;      // [index16] push constants[index]
+	static final byte NIL = 1;
+	static final byte TRUE = 2;
+	static final byte FALSE = 3;
+	static final byte POP = 4;
+	static final byte GET_LOCAL = 5;     // [slot8]
+	static final byte SET_LOCAL = 6;     // [slot8]
+	static final byte GET_GLOBAL = 7;    // [name16]
+	static final byte DEFINE_GLOBAL = 8; // [name16]
+	static final byte SET_GLOBAL = 9;    // [name16]
+	static final byte GET_UPVALUE = 10;  // [index8]
+	static final byte SET_UPVALUE = 11;  // [index8]
+	static final byte GET_PROPERTY = 12; // [name16]
+	static final byte SET_PROPERTY = 13; // [name16]
+	static final byte GET_SUPER = 14;    // [name16]
+	static final byte EQUAL = 15;
+	static final byte NOT_EQUAL = 16;
+	static final byte GREATER = 17;
+	static final byte GREATER_EQUAL = 18;
+	static final byte LESS = 19;
+	static final byte LESS_EQUAL = 20;
+	static final byte ADD = 21;
+	static final byte SUBTRACT = 22;
+	static final byte MULTIPLY = 23;
+	static final byte DIVIDE = 24;
+	static final byte NOT = 25;
+	static final byte NEGATE = 26;
+	static final byte PRINT = 27;
+	static final byte JUMP = 28;          // [offset16] forward
+	static final byte JUMP_IF_FALSE = 29; // [offset16] forward, leaves condition
+	static final byte LOOP = 30;          // [offset16] backward
+	static final byte CALL = 31;          // [argCount8]
+	static final byte INVOKE = 32;        // [name16][argCount8]
+	static final byte SUPER_INVOKE = 33;  // [name16][argCount8]
+	static final byte CLOSURE = 34;       // [function16] then (isLocal8, index8) per upvalue
+	static final byte CLOSE_UPVALUE = 35;
+	static final byte RETURN = 36;
+	static final byte CLASS = 37;         // [name16]
+	static final byte INHERIT = 38;
+	static final byte METHOD = 39;        // [name16]
+	static final byte TAIL_CALL = 40;     // [argCount8] a CALL whose result is returned
+}
@@ -0,0 +1,341 @@
+package org.derby.billou;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies a resolved syntax tree before it runs.
+ *
+ * Binary, Unary and Logical expressions whose operands are literals
+ * are folded into a Literal, Grouping nodes are dropped, and If and
+ * While statements with a literal condition lose the branches that
+ * can never run. An operation that would fail at runtime, like
+ * "-nil", is left in place so the error still happens, on its line.
+ *
+ * Nodes that are kept are reused, so what the Resolver recorded on
+ * them stays valid; a node rebuilt around a simplified child gets
+ * the same resolution copied over.
+ */
+class Optimizer implements Expression.Visitor<Expression>,
+		Statement.Visitor<Statement> {
+
+	/**
+	 * @return the simplified statements, without those that can
+	 * never run
+	 */
+	List<Statement> optimize(List<Statement> statements) {
+		List<Statement> result = new ArrayList<>(statements.size());
+		for (Statement statement : statements) {
+			Statement optimized = optimize(statement);
+			if (optimized != null) result.add(optimized);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the simplified statement, or null if it does nothing
+	 */
+	private Statement optimize(Statement statement) {
+		return statement.accept(this);
+	}
+
+	private Expression optimize(Expression expression) {
+		return expression.accept(this);
+	}
+
+	/**
+	 * Simplifies a statement that cannot simply be left out, like
+	 * the body of a loop
+	 */
+	private Statement optimizeBody(Statement statement) {
+		Statement optimized = optimize(statement);
+		if (optimized == null) return empty();
+		return optimized;
+	}
+
+	/**
+	 * @return a block that does nothing, and so needs no Env
+	 */
+	private static Statement.Block empty() {
+		Statement.Block block = new Statement.Block(new ArrayList<>());
+		block.flat = true;
+		return block;
+	}
+
+	private List<Statement.Function> optimizeFunctions(
+			List<Statement.Function> functions) {
+		List<Statement.Function> result = new ArrayList<>(functions.size());
+		for (Statement.Function function : functions) {
+			result.add((Statement.Function) optimize(function));
+		}
+		return result;
+	}
+
+	private List<Expression> optimizeAll(List<Expression> expressions) {
+		List<Expression> result = new ArrayList<>(expressions.size());
+		for (Expression expression : expressions) {
+			result.add(optimize(expression));
+		}
+		return result;
+	}
+
+	@Override
+	public Statement visitBlockStmt(Statement.Block stmt) {
+		List<Statement> statements = optimize(stmt.statements);
+		if (statements.equals(stmt.statements)) return stmt;
+
+		Statement.Block block = new Statement.Block(statements);
+		block.scopeSize = stmt.scopeSize;
+		block.flat = stmt.flat;
+		return block;
+	}
+
+	@Override
+	public Statement visitClassStmt(Statement.Class stmt) {
+		List<Statement.Function> methods = optimizeFunctions(stmt.methods);
+		if (methods.equals(stmt.methods)) return stmt;
+
+		Statement.Class klass = new Statement.Class(stmt.name,
+				stmt.superclass, methods);
+		klass.slot = stmt.slot;
+		return klass;
+	}
+
+	@Override
+	public Statement visitExpressionStmt(Statement.Expression stmt) {
+		Expression expression = optimize(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Statement.Expression(expression);
+	}
+
+	@Override
+	public Statement visitFunctionStmt(Statement.Function stmt) {
+		// a body parsed on first call is optimized then
+		if (!stmt.isParsed()) return stmt;
+
+		List<Statement> body = optimize(stmt.body());
+		if (body.equals(stmt.body())) return stmt;
+
+		Statement.Function function = new Statement.Function(stmt.name,
+				stmt.params, body);
+		function.slot = stmt.slot;
+		function.scopeSize = stmt.scopeSize;
+		return function;
+	}
+
+	@Override
+	public Statement visitIfStmt(Statement.If stmt) {
+		Expression condition = optimize(stmt.condition);
+		if (condition instanceof Expression.Literal) {
+			if (Interpreter.isTruthy(((Expression.Literal) condition).value)) {
+				return optimize(stmt.thenBranch);
+			}
+			if (stmt.elseBranch == null) return null;
+			return optimize(stmt.elseBranch);
+		}
+
+		Statement thenBranch = optimizeBody(stmt.thenBranch);
+		Statement elseBranch = stmt.elseBranch == null ? null
+				: optimize(stmt.elseBranch);
+		if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+				elseBranch == stmt.elseBranch) {
+			return stmt;
+		}
+		return new Statement.If(condition, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Statement visitPrintStmt(Statement.Print stmt) {
+		Expression expression = optimize(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Statement.Print(expression);
+	}
+
+	@Override
+	public Statement visitReturnStmt(Statement.Return stmt) {
+		if (stmt.value == null) return stmt;
+
+		Expression value = optimize(stmt.value);
+		if (value == stmt.value) return stmt;
+
+		Statement.Return ret = new Statement.Return(stmt.keyword, value);
+		ret.isTailCall = stmt.isTailCall;
+		return ret;
+	}
+
+	@Override
+	public Statement visitVarStmt(Statement.Var stmt) {
+		if (stmt.initializer == null) return stmt;
+
+		Expression initializer = optimize(stmt.initializer);
+		if (initializer == stmt.initializer) return stmt;
+
+		Statement.Var var = new Statement.Var(stmt.name, initializer);
+		var.slot = stmt.slot;
+		return var;
+	}
+
+	@Override
+	public Statement visitForStmt(Statement.For stmt) {
+		Statement initializer = stmt.initializer != null ? optimize(stmt.initializer) : null;
+		Expression condition = stmt.condition != null ? optimize(stmt.condition) : null;
+		Expression increment = stmt.increment;
+		Statement body = stmt.body;
+		if (condition instanceof Expression.Literal &&
+				!Interpreter.isTruthy(((Expression.Literal) condition).value)) {
+			// only the initializer and the condition ever run
+			increment = null;
+			body = empty();
+		} else {
+			if (increment != null) increment = optimize(increment);
+			body = optimizeBody(body);
+		}
+		if (initializer == stmt.initializer && condition == stmt.condition &&
+				increment == stmt.increment && body == stmt.body) {
+			return stmt;
+		}
+
+		Statement.For loop = new Statement.For(initializer, condition, increment, body);
+		loop.counted = stmt.counted && condition instanceof Expression.Binary &&
+				increment != null;
+		loop.step = stmt.step;
+		loop.observed = stmt.observed;
+		loop.flat = stmt.flat;
+		loop.scopeSize = stmt.scopeSize;
+		return loop;
+	}
+
+	@Override
+	public Statement visitWhileStmt(Statement.While stmt) {
+		Expression condition = optimize(stmt.condition);
+		if (condition instanceof Expression.Literal &&
+				!Interpreter.isTruthy(((Expression.Literal) condition).value)) {
+			return null;
+		}
+
+		Statement body = optimizeBody(stmt.body);
+		if (condition == stmt.condition && body == stmt.body) return stmt;
+		return new Statement.While(condition, body);
+	}
+
+	@Override
+	public Expression visitAssignExpr(Expression.Assign expr) {
+		Expression value = optimize(expr.value);
+		if (value == expr.value) return expr;
+
+		Expression.Assign assign = new Expression.Assign(expr.name, value);
+		assign.depth = expr.depth;
+		assign.slot = expr.slot;
+		return assign;
+	}
+
+	@Override
+	public Expression visitBinaryExpr(Expression.Binary expr) {
+		Expression left = optimize(expr.left);
+		Expression right = optimize(expr.right);
+
+		if (left instanceof Expression.Literal &&
+				right instanceof Expression.Literal) {
+			try {
+				return literal(Interpreter.binary(expr.operator,
+						((Expression.Literal) left).value,
+						((Expression.Literal) right).value));
+			} catch (RuntimeError error) {
+				// leave it to fail when it runs
+			}
+		}
+
+		if (left == expr.left && right == expr.right) return expr;
+		return new Expression.Binary(left, expr.operator, right);
+	}
+
+	@Override
+	public Expression visitCallExpr(Expression.Call expr) {
+		Expression callee = optimize(expr.callee);
+		List<Expression> arguments = optimizeAll(expr.arguments);
+		if (callee == expr.callee && arguments.equals(expr.arguments)) return expr;
+		return new Expression.Call(callee, expr.paren, arguments);
+	}
+
+	@Override
+	public Expression visitGetExpr(Expression.Get expr) {
+		Expression object = optimize(expr.object);
+		if (object == expr.object) return expr;
+		return new Expression.Get(object, expr.name);
+	}
+
+	@Override
+	public Expression visitGroupingExpr(Expression.Grouping expr) {
+		return optimize(expr.expression);
+	}
+
+	@Override
+	public Expression visitLiteralExpr(Expression.Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expression visitLogicalExpr(Expression.Logical expr) {
+		Expression left = optimize(expr.left);
+		Expression right = optimize(expr.right);
+
+		// the value of a logical expression is one of its operands
+		if (left instanceof Expression.Literal) {
+			boolean truthy = Interpreter.isTruthy(((Expression.Literal) left).value);
+			if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+			return truthy ? right : left;
+		}
+
+		if (left == expr.left && right == expr.right) return expr;
+		return new Expression.Logical(left, expr.operator, right);
+	}
+
+	@Override
+	public Expression visitSetExpr(Expression.Set expr) {
+		Expression object = optimize(expr.object);
+		Expression value = optimize(expr.value);
+		if (object == expr.object && value == expr.value) return expr;
+		return new Expression.Set(object, expr.name, value);
+	}
+
+	@Override
+	public Expression visitSuperExpr(Expression.Super expr) {
+		return expr;
+	}
+
+	@Override
+	public Expression visitThisExpr(Expression.This expr) {
+		return expr;
+	}
+
+	@Override
+	public Expression visitUnaryExpr(Expression.Unary expr) {
+		Expression right = optimize(expr.right);
+
+		if (right instanceof Expression.Literal) {
+			try {
+				return literal(Interpreter.unary(expr.operator,
+						((Expression.Literal) right).value));
+			} catch (RuntimeError error) {
+				// leave it to fail when it runs
+			}
+		}
+
+		if (right == expr.right) return expr;
+		return new Expression.Unary(expr.operator, right);
+	}
+
+	@Override
+	public Expression visitVariableExpr(Expression.Variable expr) {
+		return expr;
+	}
+
+	/**
+	 * Makes a literal of a folded value. Literals hold plain strings,
+	 * since the bytecode backends only know those.
+	 */
+	private static Expression literal(Object value) {
+		if (value instanceof Rope) value = value.toString();
+		return new Expression.Literal(value);
+	}
+}
@@ -3,7 +3,7 @@ package org.derby.billou;
 import static org.derby.billou.TokenType.*;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -16,15 +16,103 @@ import java.util.List;
  * by creating a parse tree or abstract syntax tree (AST) of the source code
  *
  * it uses the Recursive descent algorithm to produce
- * this syntax tree
+ * this syntax tree, and precedence climbing (a Pratt parser) for
+ * expressions
  */
 class Parser {
 	private static class ParseError extends RuntimeException {}
-	private final List<Token> tokens;
-	private int current = 0;
 
-	Parser(List<Token> tokens) {
+	//> precedence
+	// how tightly operators bind, loosest first; tokens that are no
+	// infix operator have NONE
+	private static final int NONE = 0;
+	private static final int ASSIGNMENT = 1; // =
+	private static final int LOGIC_OR = 2; // or
+	private static final int LOGIC_AND = 3; // and
+	private static final int EQUALITY = 4; // == !=
+	private static final int COMPARISON = 5; // < > <= >=
+	private static final int TERM = 6; // + -
+	private static final int FACTOR = 7; // * /
+	private static final int UNARY = 8; // ! -
+	private static final int CALL = 9; // . ()
+	//< precedence
+
+	/**
+	 * Parses the expression a token starts
+	 */
+	private interface Prefix {
+		Expression parse(Parser parser, Token token);
+	}
+
+	/**
+	 * Parses the rest of an expression after its left operand and the
+	 * operator token
+	 */
+	private interface Infix {
+		Expression parse(Parser parser, Expression left, Token operator);
+	}
+
+	// indexed by TokenType ordinal
+	private static final Prefix[] PREFIX = new Prefix[TokenType.values().length];
+	private static final Infix[] INFIX = new Infix[TokenType.values().length];
+	private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+	private static void prefix(TokenType type, Prefix prefix) {
+		PREFIX[type.ordinal()] = prefix;
+	}
+
+	private static void infix(TokenType type, int precedence, Infix infix) {
+		INFIX[type.ordinal()] = infix;
+		PRECEDENCE[type.ordinal()] = precedence;
+	}
+
+	static {
+		prefix(FALSE, (parser, token) -> new Expression.Literal(false));
+		prefix(TRUE, (parser, token) -> new Expression.Literal(true));
+		prefix(NIL, (parser, token) -> new Expression.Literal(null));
+		prefix(NUMBER, (parser, token) -> new Expression.Literal(token.literal));
+		prefix(STRING, (parser, token) -> new Expression.Literal(token.literal));
+		prefix(SUPER, Parser::superExpression);
+		prefix(THIS, (parser, token) -> new Expression.This(token));
+		prefix(IDENTIFIER, (parser, token) -> new Expression.Variable(token));
+		prefix(LEFT_PAREN, (parser, token) -> parser.grouping());
+		prefix(BANG, Parser::unary);
+		prefix(MINUS, Parser::unary);
+
+		infix(EQUAL, ASSIGNMENT, Parser::assignment);
+		infix(OR, LOGIC_OR, Parser::logical);
+		infix(AND, LOGIC_AND, Parser::logical);
+		infix(BANG_EQUAL, EQUALITY, Parser::binary);
+		infix(EQUAL_EQUAL, EQUALITY, Parser::binary);
+		infix(GREATER, COMPARISON, Parser::binary);
+		infix(GREATER_EQUAL, COMPARISON, Parser::binary);
+		infix(LESS, COMPARISON, Parser::binary);
+		infix(LESS_EQUAL, COMPARISON, Parser::binary);
+		infix(MINUS, TERM, Parser::binary);
+		infix(PLUS, TERM, Parser::binary);
+		infix(SLASH, FACTOR, Parser::binary);
+		infix(STAR, FACTOR, Parser::binary);
+		infix(LEFT_PAREN, CALL, (parser, callee, paren) -> parser.finishCall(callee));
+		infix(DOT, CALL, (parser, object, dot) -> parser.get(object));
+	}
+	// tokens are pulled one at a time, so only the last two are held
+	private final Iterator<Token> tokens;
+	private Token next;
+	private Token previous;
+
+	// whether to skip the bodies of top-level functions and methods,
+	// and how many blocks deep the parser is
+	private final boolean lazy;
+	private int depth = 0;
+
+	Parser(Iterator<Token> tokens) {
+		this(tokens, false);
+	}
+
+	Parser(Iterator<Token> tokens, boolean lazy) {
 		this.tokens = tokens;
+		this.next = tokens.next();
+		this.lazy = lazy;
 	}
 	List<Statement> parse() {
 		List<Statement> statements = new ArrayList<>();
@@ -41,7 +129,7 @@ class Parser {
 	private Expression expression() {
 
 		//> Statements and State expression
-		return assignment();
+		return parse(ASSIGNMENT);
 		//< Statements and State expression
 	}
 
@@ -133,23 +221,7 @@ class Parser {
 		//> for-body
 		Statement body = statement();
 
-		//> for-desugar-increment
-		if (increment != null) {
-			body = new Statement.Block(
-					Arrays.asList(
-							body,
-							new Statement.Expression(increment)));
-		}
-
-		if (condition == null) condition = new Expression.Literal(true);
-		body = new Statement.While(condition, body);
-
-		if (initializer != null) {
-			body = new Statement.Block(Arrays.asList(initializer, body));
-		}
-
-		return body;
-
+		return new Statement.For(initializer, condition, increment, body);
 	}
 
 	private Statement ifStatement() {
@@ -229,6 +301,9 @@ class Parser {
 		//> parse-body
 
 		consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+		if (lazy && depth == 0) {
+			return new Statement.Function(name, parameters, new LazyBody(skipBody()));
+		}
 		List<Statement> body = block();
 		return new Statement.Function(name, parameters, body);
 		//< parse-body
@@ -237,121 +312,101 @@ class Parser {
 	private List<Statement> block() {
 		List<Statement> statements = new ArrayList<>();
 
+		depth++;
 		while (!check(RIGHT_BRACE) && !isAtEnd()) {
 			statements.add(declaration());
 		}
+		depth--;
 
 		consume(RIGHT_BRACE, "Expect '}' after block.");
 		return statements;
 	}
-	//< Statements and State block
-	//> Statements and State parse-assignment
-	private Expression assignment() {
 
-		Expression expression = or();
-		//< Control Flow or-in-assignment
-
-		if (match(EQUAL)) {
-			Token equals = previous();
-			Expression value = assignment();
-
-			if (expression instanceof Expression.Variable) {
-				Token name = ((Expression.Variable) expression).name;
-				return new Expression.Assign(name, value);
-				//> Classes assign-set
-			} else if (expression instanceof Expression.Get) {
-				Expression.Get get = (Expression.Get) expression;
-				return new Expression.Set(get.object, get.name, value);
-				//< Classes assign-set
+	/**
+	 * Moves past a function body, only matching braces
+	 * @return its tokens, from after the opening brace through the
+	 * closing one, then an EOF
+	 */
+	private List<Token> skipBody() {
+		List<Token> body = new ArrayList<>();
+		int braces = 1;
+		while (!isAtEnd()) {
+			Token token = move();
+			body.add(token);
+			if (token.type == LEFT_BRACE) {
+				braces++;
+			} else if (token.type == RIGHT_BRACE && --braces == 0) {
+				body.add(new Token(EOF, null, null, token.line));
+				return body;
 			}
-
-			error(equals, "Invalid assignment target."); // [no-throw]
 		}
 
-		return expression;
+		throw error(peek(), "Expect '}' after block.");
 	}
 
-	private Expression or() {
-		Expression expression = and();
-
-		while (match(OR)) {
-			Token operator = previous();
-			Expression right = and();
-			expression = new Expression.Logical(expression, operator, right);
+	/**
+	 * Parses a body skipped by skipBody()
+	 */
+	List<Statement> body() {
+		try {
+			return block();
+		} catch (ParseError error) {
+			return new ArrayList<>();
 		}
-
-		return expression;
 	}
-	private Expression and() {
-		Expression expression = equality();
+	//< Statements and State block
+	//> pratt
+	/**
+	 * Parses an expression whose operators all bind at least as
+	 * tightly as precedence. The token an expression starts with picks
+	 * its prefix parselet, and each operator after it its infix one,
+	 * which gives its operand precedence one higher to be left
+	 * associative, or the same to be right associative.
+	 */
+	private Expression parse(int precedence) {
+		Token token = peek();
+		Prefix prefix = PREFIX[token.type.ordinal()];
+		if (prefix == null) throw error(token, "Expect expression.");
+		move();
 
-		while (match(AND)) {
-			Token operator = previous();
-			Expression right = equality();
-			expression = new Expression.Logical(expression, operator, right);
+		Expression expression = prefix.parse(this, token);
+		while (precedence <= PRECEDENCE[peek().type.ordinal()]) {
+			Token operator = move();
+			expression = INFIX[operator.type.ordinal()].parse(this, expression, operator);
 		}
 
 		return expression;
 	}
+	//< pratt
 
-	private Expression equality() {
-		Expression expression = comparison();
+	private Expression assignment(Expression target, Token equals) {
+		Expression value = parse(ASSIGNMENT);
 
-		while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-			Token operator = previous();
-			Expression right = comparison();
-			expression = new Expression.Binary(expression, operator, right);
+		if (target instanceof Expression.Variable) {
+			Token name = ((Expression.Variable) target).name;
+			return new Expression.Assign(name, value);
+		} else if (target instanceof Expression.Get) {
+			Expression.Get get = (Expression.Get) target;
+			return new Expression.Set(get.object, get.name, value);
 		}
 
-		return expression;
+		error(equals, "Invalid assignment target."); // [no-throw]
+		return target;
 	}
-	//< equality
-	//> comparison
-	private Expression comparison() {
-		Expression expression = term();
 
-		while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-			Token operator = previous();
-			Expression right = term();
-			expression = new Expression.Binary(expression, operator, right);
-		}
-
-		return expression;
+	private Expression logical(Expression left, Token operator) {
+		Expression right = parse(PRECEDENCE[operator.type.ordinal()] + 1);
+		return new Expression.Logical(left, operator, right);
 	}
 
-	private Expression term() {
-		Expression expression = factor();
-
-		while (match(MINUS, PLUS)) {
-			Token operator = previous();
-			Expression right = factor();
-			expression = new Expression.Binary(expression, operator, right);
-		}
-
-		return expression;
+	private Expression binary(Expression left, Token operator) {
+		Expression right = parse(PRECEDENCE[operator.type.ordinal()] + 1);
+		return new Expression.Binary(left, operator, right);
 	}
 
-	private Expression factor() {
-		Expression expression = unary();
-
-		while (match(SLASH, STAR)) {
-			Token operator = previous();
-			Expression right = unary();
-			expression = new Expression.Binary(expression, operator, right);
-		}
-
-		return expression;
-	}
-
-	private Expression unary() {
-		if (match(BANG, MINUS)) {
-			Token operator = previous();
-			Expression right = unary();
-			return new Expression.Unary(operator, right);
-		}
-
-		return call();
-
+	private Expression unary(Token operator) {
+		Expression right = parse(UNARY);
+		return new Expression.Unary(operator, right);
 	}
 
 	private Expression finishCall(Expression callee) {
@@ -372,74 +427,30 @@ class Parser {
 
 		return new Expression.Call(callee, paren, arguments);
 	}
-	//< Functions finish-call
-	//> Functions call
-	private Expression call() {
-		Expression expression = primary();
-
-		while (true) { // [while-true]
-			if (match(LEFT_PAREN)) {
-				expression = finishCall(expression);
-				//> Classes parse-property
-			} else if (match(DOT)) {
-				Token name = consume(IDENTIFIER,
-						"Expect property name after '.'.");
-				expression = new Expression.Get(expression, name);
-				//< Classes parse-property
-			} else {
-				break;
-			}
-		}
 
-		return expression;
+	private Expression get(Expression object) {
+		Token name = consume(IDENTIFIER,
+				"Expect property name after '.'.");
+		return new Expression.Get(object, name);
 	}
-	//< Functions call
-	//> primary
-	private Expression primary() {
-		if (match(FALSE)) return new Expression.Literal(false);
-		if (match(TRUE)) return new Expression.Literal(true);
-		if (match(NIL)) return new Expression.Literal(null);
-
-		if (match(NUMBER, STRING)) {
-			return new Expression.Literal(previous().literal);
-		}
-		//> Inheritance parse-super
-
-		if (match(SUPER)) {
-			Token keyword = previous();
-			consume(DOT, "Expect '.' after 'super'.");
-			Token method = consume(IDENTIFIER,
-					"Expect superclass method name.");
-			return new Expression.Super(keyword, method);
-		}
-
-
-		if (match(THIS)) return new Expression.This(previous());
-
 
-		if (match(IDENTIFIER)) {
-			return new Expression.Variable(previous());
-		}
-		//< Statements and State parse-identifier
-
-		if (match(LEFT_PAREN)) {
-			Expression expression = expression();
-			consume(RIGHT_PAREN, "Expect ')' after expression.");
-			return new Expression.Grouping(expression);
-		}
-		//> primary-error
+	private Expression superExpression(Token keyword) {
+		consume(DOT, "Expect '.' after 'super'.");
+		Token method = consume(IDENTIFIER,
+				"Expect superclass method name.");
+		return new Expression.Super(keyword, method);
+	}
 
-		throw error(peek(), "Expect expression.");
-		//< primary-error
+	private Expression grouping() {
+		Expression expression = expression();
+		consume(RIGHT_PAREN, "Expect ')' after expression.");
+		return new Expression.Grouping(expression);
 	}
-	//< primary
 	//> match
-	private boolean match(TokenType... types) {
-		for (TokenType type : types) {
-			if (check(type)) {
-				move();
-				return true;
-			}
+	private boolean match(TokenType type) {
+		if (check(type)) {
+			move();
+			return true;
 		}
 
 		return false;
@@ -460,7 +471,10 @@ class Parser {
 	//< check
 	//> advance
 	private Token move() {
-		if (!isAtEnd()) current++;
+		if (!isAtEnd()) {
+			previous = next;
+			next = tokens.next();
+		}
 		return previous();
 	}
 
@@ -469,11 +483,11 @@ class Parser {
 	}
 
 	private Token peek() {
-		return tokens.get(current);
+		return next;
 	}
 
 	private Token previous() {
-		return tokens.get(current - 1);
+		return previous;
 	}
 
 	private ParseError error(Token token, String message) {
@@ -0,0 +1,142 @@
+package org.derby.billou;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A polymorphic inline cache at a property get or set site.
+ *
+ * Shapes are rooted per class, so the receiver's shape alone says
+ * both where its fields live and which class its methods come from.
+ * Each entry remembers for one shape either the index of the field,
+ * the method the class resolves the name to, or for a set that adds
+ * a field, the shape the instance moves to.
+ */
+class PropertyCache {
+	static final int MAX_ENTRIES = 4;
+
+	// every site created while statistics are enabled, else null
+	private static List<PropertyCache> sites = null;
+
+	private final Token name;
+	// one extra entry holds the latest miss of a megamorphic site
+	private final Shape[] shapes = new Shape[MAX_ENTRIES + 1];
+	private final int[] indexes = new int[MAX_ENTRIES + 1];
+	private final BillouFunction[] methods = new BillouFunction[MAX_ENTRIES + 1];
+	private final Shape[] transitions = new Shape[MAX_ENTRIES + 1];
+	private int size = 0;
+
+	long hits = 0;
+	long misses = 0;
+
+	PropertyCache(Token name) {
+		this.name = name;
+		if (sites != null) sites.add(this);
+	}
+
+	/**
+	 * Keeps track of every site created from now on for report
+	 */
+	static void enableStatistics() {
+		sites = new ArrayList<>();
+	}
+
+	/**
+	 * Reads a field or a bound method of an instance
+	 */
+	Object get(BillouInstance instance) {
+		int entry = lookUp(instance);
+		if (methods[entry] != null) return methods[entry].bind(instance);
+		return instance.values[indexes[entry]];
+	}
+
+	/**
+	 * Resolves a property that is about to be called
+	 * @return the method it names, not bound to instance, or null
+	 * if it is a field
+	 */
+	BillouFunction method(BillouInstance instance) {
+		return methods[lookUp(instance)];
+	}
+
+	/**
+	 * Writes a field of an instance, adding it if it is new
+	 */
+	void set(BillouInstance instance, Object value) {
+		Shape shape = instance.shape;
+		int entry = find(shape);
+		if (entry < 0) {
+			int index = shape.indexOf(name.symbol);
+			if (index >= 0) {
+				entry = add(shape, index, null, null);
+			} else {
+				Shape next = shape.with(name.symbol);
+				entry = add(shape, next.size() - 1, null, next);
+			}
+		}
+
+		instance.put(transitions[entry] != null ? transitions[entry] : shape,
+				indexes[entry], value);
+	}
+
+	/**
+	 * Finds the entry for a get, filling one on a miss
+	 */
+	private int lookUp(BillouInstance instance) {
+		Shape shape = instance.shape;
+		int entry = find(shape);
+		if (entry >= 0) return entry;
+
+		int index = shape.indexOf(name.symbol);
+		if (index >= 0) return add(shape, index, null, null);
+
+		BillouFunction method = instance.klass.findMethod(name.symbol);
+		if (method != null) return add(shape, -1, method, null);
+
+		throw new RuntimeError(name,
+				"Undefined property '" + name.lexeme() + "'.");
+	}
+
+	private int find(Shape shape) {
+		// counted only for --cache-stats, off the hot path otherwise
+		for (int i = 0; i < size; i++) {
+			if (shapes[i] == shape) {
+				if (sites != null) hits++;
+				return i;
+			}
+		}
+
+		if (sites != null) misses++;
+		return -1;
+	}
+
+	private int add(Shape shape, int index, BillouFunction method,
+			Shape transition) {
+		// once megamorphic, only the extra last entry is replaced
+		int entry = size < MAX_ENTRIES ? size++ : MAX_ENTRIES;
+
+		shapes[entry] = shape;
+		indexes[entry] = index;
+		methods[entry] = method;
+		transitions[entry] = transition;
+		return entry;
+	}
+
+	/**
+	 * Prints the hit and miss counts of every site that was used,
+	 * flagging megamorphic ones
+	 */
+	static void report(PrintStream out) {
+		if (sites == null) return;
+
+		for (PropertyCache site : sites) {
+			if (site.hits + site.misses == 0) continue;
+			out.println("[line " + site.name.line + "] ." + site.name.lexeme() +
+					": " + site.hits + " hits, " + site.misses + " misses, " +
+					site.size + " shapes" +
+					(site.size == MAX_ENTRIES && site.misses > MAX_ENTRIES
+							? " (megamorphic)" : ""));
+		}
+	}
+}
@@ -6,17 +6,15 @@ import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
-	private final Interpreter interpreter;
 	//> scopes-field
-	private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+	private final Stack<Scope> scopes = new Stack<>();
+	// where blocks flattened at the top level keep their variables:
+	// the global Env, which grows to fit them
+	private final Scope script = new Scope(null);
 
 	private FunctionType currentFunction = FunctionType.NONE;
 
 
-	Resolver(Interpreter interpreter) {
-		this.interpreter = interpreter;
-	}
-
 	private enum FunctionType {
 		NONE,
 		FUNCTION,
@@ -33,6 +31,46 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 
 	private ClassType currentClass = ClassType.NONE;
 
+	/**
+	 * A variable declared in a local scope and the slot
+	 * it occupies in that scope's Env
+	 */
+	private static class Local {
+		final int slot;
+		boolean defined = false;
+		// how often the variable is read and assigned
+		int reads = 0;
+		int writes = 0;
+
+		Local(int slot) {
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * The variables declared in a function or a block. A flattened
+	 * block has no Env of its own: its variables take slots in its
+	 * frame's, the Env of the nearest scope that has one.
+	 */
+	private static class Scope {
+		final Map<String, Local> locals = new HashMap<>();
+		final Scope frame;
+		// the frame's next free slot when this scope began
+		final int base;
+		// the next free slot, and the most slots in use at once
+		int next = 0;
+		int size = 0;
+
+		Scope(Scope frame) {
+			this.frame = frame != null ? frame : this;
+			this.base = this.frame.next;
+		}
+
+		boolean flat() {
+			return frame != this;
+		}
+	}
+
 	void resolve(List<Statement> statements) {
 		for (Statement statement : statements) {
 			resolve(statement);
@@ -41,11 +79,42 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 
 	@Override
 	public Void visitBlockStmt(Statement.Block stmt) {
-		beginScope();
+		stmt.flat = !declaresFunctions(stmt);
+		if (stmt.flat) {
+			beginFlatScope();
+		} else {
+			beginScope();
+		}
 		resolve(stmt.statements);
-		endScope();
+		stmt.scopeSize = endScope();
 		return null;
 	}
+
+	/**
+	 * Checks whether a function or class is declared anywhere in a
+	 * statement. Only those capture variables, so a block without
+	 * any can keep its variables in the enclosing Env.
+	 */
+	private static boolean declaresFunctions(Statement statement) {
+		if (statement instanceof Statement.Function ||
+				statement instanceof Statement.Class) {
+			return true;
+		}
+		if (statement instanceof Statement.Block) {
+			for (Statement inner : ((Statement.Block) statement).statements) {
+				if (declaresFunctions(inner)) return true;
+			}
+		} else if (statement instanceof Statement.If) {
+			Statement.If branch = (Statement.If) statement;
+			return declaresFunctions(branch.thenBranch) ||
+					(branch.elseBranch != null && declaresFunctions(branch.elseBranch));
+		} else if (statement instanceof Statement.While) {
+			return declaresFunctions(((Statement.While) statement).body);
+		} else if (statement instanceof Statement.For) {
+			return declaresFunctions(((Statement.For) statement).body);
+		}
+		return false;
+	}
 	//< visit-block-stmt
 	//> Classes resolver-visit-class
 	@Override
@@ -55,7 +124,7 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 		currentClass = ClassType.CLASS;
 
 	    //declares a statement
-		declare(stmt.name);
+		stmt.slot = declare(stmt.name);
 
 		//defines a statement
 		define(stmt.name);
@@ -63,7 +132,7 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 
 
 		if (stmt.superclass != null &&
-				stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+				stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
 			Billou.error(stmt.superclass.name,
 					"A class should not inherit from itself.");
 		}
@@ -77,17 +146,13 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 
 		if (stmt.superclass != null) {
 			beginScope();
-			scopes.peek().put("super", true);
+			declare("super");
 		}
 
-		beginScope();
-		scopes.peek().put("this", true);
-
-
 		for (Statement.Function method : stmt.methods) {
 			FunctionType declaration = FunctionType.METHOD;
 			//> resolver-initializer-type
-			if (method.name.lexeme.equals("init")) {
+			if (method.name.lexeme().equals("init")) {
 				declaration = FunctionType.INITIALIZER;
 			}
 
@@ -95,9 +160,6 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 			resolveFunction(method, declaration); // [local]
 		}
 
-		//> resolver-end-this-scope
-		endScope();
-
 		if (stmt.superclass != null) endScope();
 
 		currentClass = enclosingClass;
@@ -112,7 +174,7 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 
 	@Override
 	public Void visitFunctionStmt(Statement.Function stmt) {
-		declare(stmt.name);
+		stmt.slot = declare(stmt.name);
 		define(stmt.name);
 
 		resolveFunction(stmt, FunctionType.FUNCTION);
@@ -148,6 +210,12 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 						"Can't return a value from an initializer.");
 			}
 			resolve(stmt.value);
+			// the Optimizer drops the parentheses of return (f(x));
+			Expression value = stmt.value;
+			while (value instanceof Expression.Grouping) {
+				value = ((Expression.Grouping) value).expression;
+			}
+			stmt.isTailCall = value instanceof Expression.Call;
 		}
 
 		return null;
@@ -155,7 +223,7 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 
 	@Override
 	public Void visitVarStmt(Statement.Var stmt) {
-		declare(stmt.name);
+		stmt.slot = declare(stmt.name);
 		if (stmt.initializer != null) {
 			resolve(stmt.initializer);
 		}
@@ -163,6 +231,88 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 		return null;
 	}
 
+	@Override
+	public Void visitForStmt(Statement.For stmt) {
+		if (stmt.declares()) {
+			stmt.flat = !declaresFunctions(stmt.body);
+			if (stmt.flat) {
+				beginFlatScope();
+			} else {
+				beginScope();
+			}
+		}
+		if (stmt.initializer != null) resolve(stmt.initializer);
+
+		// the counter of a counted loop, and how often the clauses use it
+		Local counter = null;
+		int reads = 0;
+		int writes = 0;
+		if (stmt.declares() && isCountedLoop(stmt)) {
+			counter = scopes.peek().locals.get(((Statement.Var) stmt.initializer).name.lexeme());
+			reads = counter.reads;
+			writes = counter.writes;
+		}
+
+		if (stmt.condition != null) resolve(stmt.condition);
+		if (stmt.increment != null) resolve(stmt.increment);
+		if (counter != null) {
+			// the condition reads it and the increment reads and assigns
+			// it once each; the bound must do neither
+			reads += 2;
+			writes += 1;
+			stmt.counted = counter.reads == reads && counter.writes == writes;
+		}
+
+		resolve(stmt.body);
+		if (stmt.counted) {
+			stmt.counted = counter.writes == writes;
+			stmt.observed = counter.reads > reads;
+		}
+
+		if (stmt.declares()) stmt.scopeSize = endScope();
+		return null;
+	}
+
+	/**
+	 * Checks the shape of a counted loop: for (var i = ...; i < bound;
+	 * i = i + step), or with <=, where step is a number
+	 */
+	private static boolean isCountedLoop(Statement.For stmt) {
+		Token counter = ((Statement.Var) stmt.initializer).name;
+		if (!(stmt.condition instanceof Expression.Binary) ||
+				!(stmt.increment instanceof Expression.Assign)) {
+			return false;
+		}
+
+		Expression.Binary condition = (Expression.Binary) stmt.condition;
+		TokenType comparison = condition.operator.type;
+		if ((comparison != TokenType.LESS && comparison != TokenType.LESS_EQUAL) ||
+				!names(condition.left, counter)) {
+			return false;
+		}
+
+		Expression.Assign increment = (Expression.Assign) stmt.increment;
+		if (!increment.name.lexeme().equals(counter.lexeme()) ||
+				!(increment.value instanceof Expression.Binary)) {
+			return false;
+		}
+
+		Expression.Binary sum = (Expression.Binary) increment.value;
+		if (sum.operator.type != TokenType.PLUS || !names(sum.left, counter) ||
+				!(sum.right instanceof Expression.Literal) ||
+				!(((Expression.Literal) sum.right).value instanceof Double)) {
+			return false;
+		}
+
+		stmt.step = (Double) ((Expression.Literal) sum.right).value;
+		return true;
+	}
+
+	private static boolean names(Expression expression, Token variable) {
+		return expression instanceof Expression.Variable &&
+				((Expression.Variable) expression).name.lexeme().equals(variable.lexeme());
+	}
+
 	@Override
 	public Void visitWhileStmt(Statement.While stmt) {
 		resolve(stmt.condition);
@@ -265,7 +415,8 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 	@Override
 	public Void visitVariableExpr(Expression.Variable expr) {
 		if (!scopes.isEmpty() &&
-				scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+				scopes.peek().locals.containsKey(expr.name.lexeme()) &&
+				!scopes.peek().locals.get(expr.name.lexeme()).defined) {
 			Billou.error(expr.name,
 					"Can't read local variable in its own initializer.");
 		}
@@ -282,57 +433,138 @@ class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
 		expression.accept(this);
 	}
 
+	/**
+	 * Resolves the body of a function parsed on first call, in the
+	 * scopes it was declared in: the top level or, for a method, its
+	 * class
+	 */
+	void resolveBody(Statement.Function function, List<Statement> body,
+			boolean method, boolean subclass) {
+		if (!method) {
+			resolveFunction(function, body, FunctionType.FUNCTION);
+			return;
+		}
+
+		currentClass = subclass ? ClassType.SUBCLASS : ClassType.CLASS;
+		if (subclass) {
+			beginScope();
+			declare("super");
+		}
+		resolveFunction(function, body, function.name.lexeme().equals("init")
+				? FunctionType.INITIALIZER : FunctionType.METHOD);
+	}
+
 	private void resolveFunction(
 			Statement.Function function, FunctionType type) {
+		if (!function.isParsed()) {
+			// resolved once it is parsed, which needs to know where it was
+			function.lazy.declaredIn(type != FunctionType.FUNCTION,
+					currentClass == ClassType.SUBCLASS);
+			return;
+		}
+		resolveFunction(function, function.body(), type);
+	}
+
+	private void resolveFunction(Statement.Function function,
+			List<Statement> body, FunctionType type) {
 		FunctionType enclosingFunction = currentFunction;
 		currentFunction = type;
 
 
 		beginScope();
+		// a method's receiver lives in its own scope, ahead of the parameters
+		if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+			declare("this");
+		}
 		for (Token param : function.params) {
 			declare(param);
 			define(param);
 		}
-		resolve(function.body);
-		endScope();
+		resolve(body);
+		function.scopeSize = endScope();
 		//> restore-current-function
 		currentFunction = enclosingFunction;
 		//< restore-current-function
 	}
 
 	private void beginScope() {
-		scopes.push(new HashMap<String, Boolean>());
-	}
-
-	private void endScope() {
-		scopes.pop();
-	}
-
-	private void declare(Token name) {
-		if (scopes.isEmpty()) return;
-
-		Map<String, Boolean> scope = scopes.peek();
+		scopes.push(new Scope(null));
+	}
+
+	/**
+	 * Opens a scope whose variables live in the enclosing frame, or
+	 * in the global Env at the top level
+	 */
+	private void beginFlatScope() {
+		scopes.push(new Scope(scopes.isEmpty() ? script : scopes.peek().frame));
+	}
+
+	/**
+	 * Closes the innermost scope. A flattened scope's slots are free
+	 * again afterwards, for the blocks that follow it.
+	 * @return the number of slots the scope's Env needs at runtime, or
+	 * for a flattened scope the number its frame's Env needs so far
+	 */
+	private int endScope() {
+		Scope scope = scopes.pop();
+		scope.frame.next = scope.base;
+		return scope.frame.size;
+	}
+
+	/**
+	 * Declares a variable in the innermost scope
+	 * @param name
+	 * @return the slot assigned to it, or -1 for a global
+	 */
+	private int declare(Token name) {
+		if (scopes.isEmpty()) return -1;
+
+		Map<String, Local> scope = scopes.peek().locals;
 		//> duplicate-variable
-		if (scope.containsKey(name.lexeme)) {
+		if (scope.containsKey(name.lexeme())) {
 			Billou.error(name,
 					"Already a variable with this name in this scope.");
+			return scope.get(name.lexeme()).slot;
 		}
 
 		//< duplicate-variable
-		scope.put(name.lexeme, false);
+		return declare(name.lexeme());
+	}
+
+	private int declare(String name) {
+		Scope frame = scopes.peek().frame;
+		Local local = new Local(frame.next++);
+		frame.size = Math.max(frame.size, frame.next);
+		scopes.peek().locals.put(name, local);
+		return local.slot;
 	}
 
 	private void define(Token name) {
 		if (scopes.isEmpty()) return;
-		scopes.peek().put(name.lexeme, true);
+		scopes.peek().locals.get(name.lexeme()).defined = true;
 	}
 
-	private void resolveLocal(Expression expression, Token name) {
+	/**
+	 * Records on the expression where the variable it names lives.
+	 * Variables not found in any local scope are left as globals.
+	 * The depth counts Envs, which flattened scopes do not have.
+	 */
+	private void resolveLocal(Expression.VariableAccess expression, Token name) {
+		int depth = 0;
 		for (int i = scopes.size() - 1; i >= 0; i--) {
-			if (scopes.get(i).containsKey(name.lexeme)) {
-				interpreter.resolve(expression, scopes.size() - 1 - i);
+			Scope scope = scopes.get(i);
+			Local local = scope.locals.get(name.lexeme());
+			if (local != null) {
+				expression.depth = depth;
+				expression.slot = local.slot;
+				if (expression instanceof Expression.Assign) {
+					local.writes++;
+				} else {
+					local.reads++;
+				}
 				return;
 			}
+			if (!scope.flat()) depth++;
 		}
 	}
 
@@ -0,0 +1,75 @@
+package org.derby.billou;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A string built by + that is only copied into one String when its
+ * characters are needed: when it is printed, compared or handed to
+ * native code. Appending to a rope in a loop is then linear instead
+ * of copying the whole string on every step.
+ *
+ * Billou strings are either a String or a Rope.
+ */
+final class Rope {
+	// joining strings this short is cheaper than keeping a node
+	private static final int MIN_LENGTH = 64;
+
+	private final int length;
+	// the parts, each a String or a Rope, until flattened
+	private Object left;
+	private Object right;
+	private String flat = null;
+
+	private Rope(Object left, Object right, int length) {
+		this.left = left;
+		this.right = right;
+		this.length = length;
+	}
+
+	static boolean isString(Object value) {
+		return value instanceof String || value instanceof Rope;
+	}
+
+	/**
+	 * Concatenates two Billou strings
+	 */
+	static Object concat(Object left, Object right) {
+		int length = length(left) + length(right);
+		if (length < MIN_LENGTH) return left.toString() + right.toString();
+		return new Rope(left, right, length);
+	}
+
+	private static int length(Object string) {
+		if (string instanceof Rope) return ((Rope) string).length;
+		return ((String) string).length();
+	}
+
+	/**
+	 * Flattens the rope, once, without recursing so left-deep ropes
+	 * of any depth are fine
+	 */
+	@Override
+	public String toString() {
+		if (flat != null) return flat;
+
+		StringBuilder builder = new StringBuilder(length);
+		Deque<Object> pending = new ArrayDeque<>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			Object part = pending.pop();
+			if (part instanceof Rope && ((Rope) part).flat == null) {
+				Rope rope = (Rope) part;
+				pending.push(rope.right);
+				pending.push(rope.left);
+			} else {
+				builder.append(part.toString());
+			}
+		}
+
+		flat = builder.toString();
+		left = null;
+		right = null;
+		return flat;
+	}
+}
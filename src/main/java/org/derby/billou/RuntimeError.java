@@ -6,9 +6,21 @@ package org.derby.billou;
  */
 class RuntimeError extends RuntimeException {
 	final Token token;
+	final int line;
 
 	RuntimeError(Token token, String message) {
 		super(message);
 		this.token = token;
+		this.line = token.line;
+	}
+
+	/**
+	 * For errors raised by the VM, which only
+	 * knows the line of the failing instruction
+	 */
+	RuntimeError(int line, String message) {
+		super(message);
+		this.token = null;
+		this.line = line;
 	}
 }
@@ -2,43 +2,46 @@ package org.derby.billou;
 
 import static org.derby.billou.TokenType.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  *It carries out lexical analysis phase
+ *
+ * Tokens are scanned one at a time as the parser asks for them. A
+ * script is read through a memory mapping and decoded a window at a
+ * time, so neither its whole text nor all its tokens are ever held.
  */
-class Scanner {
-
-	//This stores The keywords in th source if any
-	private static final Map<String, TokenType> keywords;
-
-	static {
-		keywords = new HashMap<>();
-		keywords.put("and",    AND);
-		keywords.put("class",  CLASS);
-		keywords.put("else",   ELSE);
-		keywords.put("false",  FALSE);
-		keywords.put("for",    FOR);
-		keywords.put("fun",    FUN);
-		keywords.put("if",     IF);
-		keywords.put("nil",    NIL);
-		keywords.put("or",     OR);
-		keywords.put("print",  PRINT);
-		keywords.put("return", RETURN);
-		keywords.put("super",  SUPER);
-		keywords.put("this",   THIS);
-		keywords.put("true",   TRUE);
-		keywords.put("var",    VAR);
-		keywords.put("while",  WHILE);
-	}
-	//< keyword-map
-	private final String source;
+class Scanner implements Iterator<Token> {
+
+	// how much of a script is mapped at once, and how many chars are
+	// decoded ahead of the current lexeme
+	private static final int REGION = 1 << 26;
+	private static final int WINDOW = 1 << 16;
 
-	//This will store the tokens
-	private final List<Token> tokens = new ArrayList<>();
+	// the decoded source from the start of the current lexeme on;
+	// only [0, limit) holds chars
+	private char[] buffer;
+	private int limit;
+
+	// where the rest of a script comes from, or null once it is all decoded
+	private FileChannel channel;
+	private CharsetDecoder decoder;
+	private ByteBuffer bytes;
+	private long offset;
+	private long size;
 
 	//The start of the line
 	private int start = 0;
@@ -46,21 +49,72 @@ class Scanner {
 	//The current token
 	private int current = 0;
 	private int line = 1;
+
+	// the token the last scanToken() made, if it made one
+	private Token token;
+	private boolean done = false;
+
+	// where scan errors go
+	private Errors errors = Billou::error;
 	//< scan-state
 
+	/**
+	 * Takes the errors of a scan
+	 */
+	interface Errors {
+		void error(int line, String message);
+	}
+
 	Scanner(String source) {
-		this.source = source;
+		this.buffer = source.toCharArray();
+		this.limit = buffer.length;
+	}
+
+	/**
+	 * Scans a script as UTF-8 straight from its file
+	 */
+	Scanner(Path script) throws IOException {
+		this.buffer = new char[WINDOW];
+		this.channel = FileChannel.open(script, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		map();
+	}
+
+	/**
+	 * Sends scan errors somewhere other than straight to Billou
+	 */
+	void reportErrorsTo(Errors errors) {
+		this.errors = errors;
 	}
 	//> scan-tokens
-	List<Token> scanTokens() {
-		while (!isAtEnd()) {
+	@Override
+	public boolean hasNext() {
+		return !done;
+	}
+
+	/**
+	 * @return the next token, and after the last one an EOF
+	 */
+	@Override
+	public Token next() {
+		if (done) throw new NoSuchElementException();
+
+		while (token == null) {
+			if (isAtEnd()) {
+				done = true;
+				return new Token(EOF, null, null, line);
+			}
 			// We are at the beginning of the next lexeme.
 			start = current;
 			scanToken();
 		}
 
-		tokens.add(new Token(EOF, "", null, line));
-		return tokens;
+		Token next = token;
+		token = null;
+		return next;
 	}
 	//< scan-tokens
 	//> scan-token
@@ -125,7 +179,7 @@ class Scanner {
 			} else if (isAlpha(c)) {
 				identifier();
 			} else {
-				Billou.error(line, "Unexpected character.");
+				errors.error(line, "Unexpected character.");
 			}
 			break;
 		}
@@ -137,13 +191,65 @@ class Scanner {
 	private void identifier() {
 		while (isAlphaNumeric(peek())) move();
 
-		String text = source.substring(start, current);
-		TokenType type = keywords.get(text);
-		if (type == null) type = IDENTIFIER;
+		TokenType type = identifierType();
+		if (type == IDENTIFIER) {
+			token = new Token(IDENTIFIER,
+					Symbol.of(buffer, start, current - start), line);
+			return;
+		}
 		addToken(type);
 
 	}
 
+	/**
+	 * Tells keywords from other identifiers by their chars in the
+	 * buffer, a char at a time, without making a String
+	 */
+	private TokenType identifierType() {
+		switch (buffer[start]) {
+		case 'a': return checkKeyword(1, "nd", AND);
+		case 'c': return checkKeyword(1, "lass", CLASS);
+		case 'e': return checkKeyword(1, "lse", ELSE);
+		case 'f':
+			if (current - start > 1) {
+				switch (buffer[start + 1]) {
+				case 'a': return checkKeyword(2, "lse", FALSE);
+				case 'o': return checkKeyword(2, "r", FOR);
+				case 'u': return checkKeyword(2, "n", FUN);
+				}
+			}
+			break;
+		case 'i': return checkKeyword(1, "f", IF);
+		case 'n': return checkKeyword(1, "il", NIL);
+		case 'o': return checkKeyword(1, "r", OR);
+		case 'p': return checkKeyword(1, "rint", PRINT);
+		case 'r': return checkKeyword(1, "eturn", RETURN);
+		case 's': return checkKeyword(1, "uper", SUPER);
+		case 't':
+			if (current - start > 1) {
+				switch (buffer[start + 1]) {
+				case 'h': return checkKeyword(2, "is", THIS);
+				case 'r': return checkKeyword(2, "ue", TRUE);
+				}
+			}
+			break;
+		case 'v': return checkKeyword(1, "ar", VAR);
+		case 'w': return checkKeyword(1, "hile", WHILE);
+		}
+		return IDENTIFIER;
+	}
+
+	/**
+	 * @return type if the rest of the lexeme after its first chars is rest
+	 */
+	private TokenType checkKeyword(int from, String rest, TokenType type) {
+		if (current - start != from + rest.length()) return IDENTIFIER;
+		for (int i = 0; i < rest.length(); i++) {
+			if (buffer[start + from + i] != rest.charAt(i)) return IDENTIFIER;
+		}
+		return type;
+	}
+
 	/**
 	 * checks if it's a number
 	 */
@@ -163,8 +269,8 @@ class Scanner {
 				move();
 		}
 
-		addToken(NUMBER,
-				Double.parseDouble(source.substring(start, current)));
+		String text = lexeme(start, current);
+		token = new Token(NUMBER, text, Double.parseDouble(text), line);
 	}
 
 	private void string() {
@@ -174,7 +280,7 @@ class Scanner {
 		}
 
 		if (isAtEnd()) {
-			Billou.error(line, "Unterminated string.");
+			errors.error(line, "Unterminated string.");
 			return;
 		}
 
@@ -182,8 +288,8 @@ class Scanner {
 		move();
 
 		// Trim the surrounding quotes.
-		String val = source.substring(start + 1, current - 1);
-		addToken(STRING, val);
+		String val = lexeme(start + 1, current - 1);
+		token = new Token(STRING, null, val, line);
 	}
 
 	/**
@@ -196,7 +302,7 @@ class Scanner {
 		if (isAtEnd()) return false;
 
 		//returns false if expected character doesn't match current character
-		if (source.charAt(current) != expected) return false;
+		if (buffer[current] != expected) return false;
 
 		//moves current by one
 		current++;
@@ -211,7 +317,7 @@ class Scanner {
 	 */
 	private char peek() {
 		if (isAtEnd()) return '\0';
-		return source.charAt(current);
+		return buffer[current];
 	}
 
 	/**
@@ -219,8 +325,10 @@ class Scanner {
 	 * @return the next character in the sequence
 	 */
 	private char peekNext() {
-		if (current + 1 >= source.length()) return '\0';
-		return source.charAt(current + 1);
+		while (current + 1 >= limit) {
+			if (!fill()) return '\0';
+		}
+		return buffer[current + 1];
 	}
 
 	/**
@@ -257,7 +365,7 @@ class Scanner {
 	 * @return
 	 */
 	private boolean isAtEnd() {
-		return current >= source.length();
+		return current >= limit && !fill();
 	}
 
 	/**
@@ -265,7 +373,7 @@ class Scanner {
 	 * @return current token
 	 */
 	private char move() {
-		return source.charAt(current++);
+		return buffer[current++];
 	}
 
 	/**
@@ -273,16 +381,70 @@ class Scanner {
 	 * @param type
 	 */
 	private void addToken(TokenType type) {
-		addToken(type, null);
+		token = new Token(type, null, null, line);
+	}
+
+	private String lexeme(int from, int to) {
+		return new String(buffer, from, to - from);
 	}
 
 	/**
-	 * This does the actual adding of a token
-	 * @param type
-	 * @param literal
+	 * Decodes more of a script, dropping what comes before the current
+	 * lexeme to make room
+	 * @return whether there were more chars
 	 */
-	private void addToken(TokenType type, Object literal) {
-		String text = source.substring(start, current);
-		tokens.add(new Token(type, text, literal, line));
+	private boolean fill() {
+		if (channel == null) return false;
+
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, limit - start);
+			limit -= start;
+			current -= start;
+			start = 0;
+		}
+		// a lexeme as long as the window; a surrogate pair needs two chars
+		if (buffer.length - limit < 2) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+
+		CharBuffer out = CharBuffer.wrap(buffer, limit, buffer.length - limit);
+		while (out.position() == limit) {
+			boolean last = offset + bytes.limit() == size;
+			// malformed input is replaced, so this is underflow or overflow
+			CoderResult result = decoder.decode(bytes, out, last);
+			if (result.isOverflow()) break;
+			if (last) {
+				decoder.flush(out);
+				close();
+				break;
+			}
+			// go on from the first byte not decoded, which may start a
+			// char the region cut in two
+			offset += bytes.position();
+			map();
+		}
+
+		boolean more = out.position() > limit;
+		limit = out.position();
+		return more;
+	}
+
+	private void map() {
+		try {
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+					Math.min(REGION, size - offset));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		channel = null;
+		bytes = null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,717 @@
+package org.derby.billou;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the resolved and optimized syntax tree of a script in a file
+ * next to it, script.bl.cache, so later runs of the same source skip
+ * scanning, parsing, resolving and optimizing.
+ *
+ * The file starts with a magic number, the format version and the
+ * SHA-256 of the source it was made from; it is only used when all
+ * three match. Nodes follow in prefix order, each a tag byte and its
+ * fields, with the Resolver's slots and depths. Tokens and strings
+ * are written once and referred to by index after that, a token's
+ * line as the difference from the last one's, and numbers that are
+ * usually small as varints.
+ */
+final class ScriptCache {
+	private ScriptCache() {}
+
+	private static final int MAGIC = 0x424c4331; // "BLC1"
+	// bump whenever the format or what the front end produces changes
+	private static final int VERSION = 4;
+
+	// statement tags
+	private static final int BLOCK = 1;
+	private static final int CLASS = 2;
+	private static final int EXPRESSION = 3;
+	private static final int FUNCTION = 4;
+	private static final int IF = 5;
+	private static final int PRINT = 6;
+	private static final int RETURN = 7;
+	private static final int VAR = 8;
+	private static final int WHILE = 9;
+	// expression tags
+	private static final int ASSIGN = 10;
+	private static final int BINARY = 11;
+	private static final int CALL = 12;
+	private static final int GET = 13;
+	private static final int GROUPING = 14;
+	private static final int LITERAL = 15;
+	private static final int LOGICAL = 16;
+	private static final int SET = 17;
+	private static final int SUPER = 18;
+	private static final int THIS = 19;
+	private static final int UNARY = 20;
+	private static final int VARIABLE = 21;
+	// a statement, added after the expressions
+	private static final int FOR = 22;
+	// no node, like a missing else branch
+	private static final int NONE = 0;
+
+	// literal tags
+	private static final int NIL = 0;
+	private static final int FALSE = 1;
+	private static final int TRUE = 2;
+	private static final int NUMBER = 3;
+	private static final int STRING = 4;
+	// a number that is a small whole number, as a varint
+	private static final int INTEGER = 5;
+
+	private static boolean hasLiteral(TokenType type) {
+		return type == TokenType.NUMBER || type == TokenType.STRING;
+	}
+
+	private static Path cacheFile(String script) {
+		return Paths.get(script + ".cache");
+	}
+
+	/**
+	 * Hashes a script a buffer at a time, so it is never all in memory
+	 */
+	static byte[] hash(Path script) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (InputStream in = Files.newInputStream(script)) {
+			byte[] buffer = new byte[1 << 16];
+			for (int n; (n = in.read(buffer)) > 0; ) digest.update(buffer, 0, n);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * @return the statements cached for this source of the script,
+	 * or null if there are none or they are for another source
+	 */
+	static List<Statement> load(String script, byte[] hash) {
+		Path file = cacheFile(script);
+		if (!Files.isRegularFile(file)) return null;
+
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			Reader reader = new Reader(new DataInputStream(in));
+			if (!reader.header(hash)) return null;
+			return reader.statements();
+		} catch (IOException | RuntimeException e) {
+			// unreadable or from an incompatible build: parse again
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the statements for the next run. Runs that race to
+	 * write the same cache each write a whole file, the last one
+	 * replacing the others; a cache that can't be written is skipped.
+	 */
+	static void store(String script, byte[] hash, List<Statement> statements) {
+		Path file = cacheFile(script).toAbsolutePath();
+		Path temporary = null;
+		try {
+			temporary = file.resolveSibling(file.getFileName() + "." +
+					ProcessHandle.current().pid() + ".tmp");
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+				Writer writer = new Writer(new DataOutputStream(out));
+				writer.header(hash);
+				writer.statements(statements);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			try {
+				if (temporary != null) Files.deleteIfExists(temporary);
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private static final class Writer implements Expression.Visitor<Void>,
+			Statement.Visitor<Void> {
+		private final DataOutputStream out;
+		private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+		private final Map<String, Integer> strings = new HashMap<>();
+		private int line = 0;
+
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void header(byte[] hash) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(hash);
+		}
+
+		void statements(List<Statement> statements) throws IOException {
+			try {
+				writeStatements(statements);
+			} catch (Failure failure) {
+				throw failure.cause;
+			}
+		}
+
+		/**
+		 * Carries an IOException out of the visitor methods
+		 */
+		private static final class Failure extends RuntimeException {
+			final IOException cause;
+
+			Failure(IOException cause) {
+				super(null, null, false, false);
+				this.cause = cause;
+			}
+		}
+
+		private void varint(int value) {
+			try {
+				// zigzag, so -1 for "global" stays one byte
+				int bits = (value << 1) ^ (value >> 31);
+				while ((bits & ~0x7f) != 0) {
+					out.writeByte((bits & 0x7f) | 0x80);
+					bits >>>= 7;
+				}
+				out.writeByte(bits);
+			} catch (IOException e) {
+				throw new Failure(e);
+			}
+		}
+
+		private void tag(int tag) {
+			varint(tag);
+		}
+
+		private void string(String string) {
+			Integer index = strings.get(string);
+			if (index != null) {
+				varint(index);
+				return;
+			}
+
+			strings.put(string, strings.size());
+			varint(-1);
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			varint(bytes.length);
+			try {
+				out.write(bytes);
+			} catch (IOException e) {
+				throw new Failure(e);
+			}
+		}
+
+		private void token(Token token) {
+			Integer index = tokens.get(token);
+			if (index != null) {
+				varint(index);
+				return;
+			}
+
+			tokens.put(token, tokens.size());
+			varint(-1);
+			varint(token.type.ordinal());
+			string(token.lexeme());
+			if (hasLiteral(token.type)) literal(token.literal);
+			varint(token.line - line);
+			line = token.line;
+		}
+
+		private void tokens(List<Token> list) {
+			varint(list.size());
+			for (Token token : list) token(token);
+		}
+
+		private void literal(Object value) {
+			if (value == null) {
+				tag(NIL);
+			} else if (value instanceof Boolean) {
+				tag((boolean) value ? TRUE : FALSE);
+			} else if (value instanceof Double && isInteger((double) value)) {
+				tag(INTEGER);
+				varint((int) (double) value);
+			} else if (value instanceof Double) {
+				tag(NUMBER);
+				try {
+					out.writeDouble((double) value);
+				} catch (IOException e) {
+					throw new Failure(e);
+				}
+			} else {
+				tag(STRING);
+				string(value.toString());
+			}
+		}
+
+		private static boolean isInteger(double value) {
+			return value == (int) value &&
+					Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0);
+		}
+
+		private void writeStatements(List<? extends Statement> statements) {
+			varint(statements.size());
+			for (Statement statement : statements) statement.accept(this);
+		}
+
+		private void write(Statement statement) {
+			if (statement == null) {
+				tag(NONE);
+			} else {
+				statement.accept(this);
+			}
+		}
+
+		private void write(Expression expression) {
+			if (expression == null) {
+				tag(NONE);
+			} else {
+				expression.accept(this);
+			}
+		}
+
+		private void resolution(Expression.VariableAccess access) {
+			varint(access.depth);
+			varint(access.slot);
+		}
+
+		@Override
+		public Void visitBlockStmt(Statement.Block stmt) {
+			tag(BLOCK);
+			writeStatements(stmt.statements);
+			varint(stmt.scopeSize);
+			varint(stmt.flat ? 1 : 0);
+			return null;
+		}
+
+		@Override
+		public Void visitClassStmt(Statement.Class stmt) {
+			tag(CLASS);
+			token(stmt.name);
+			write(stmt.superclass);
+			writeStatements(stmt.methods);
+			varint(stmt.slot);
+			return null;
+		}
+
+		@Override
+		public Void visitExpressionStmt(Statement.Expression stmt) {
+			tag(EXPRESSION);
+			write(stmt.expression);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionStmt(Statement.Function stmt) {
+			tag(FUNCTION);
+			token(stmt.name);
+			tokens(stmt.params);
+			writeStatements(stmt.body());
+			varint(stmt.slot);
+			varint(stmt.scopeSize);
+			return null;
+		}
+
+		@Override
+		public Void visitIfStmt(Statement.If stmt) {
+			tag(IF);
+			write(stmt.condition);
+			write(stmt.thenBranch);
+			write(stmt.elseBranch);
+			return null;
+		}
+
+		@Override
+		public Void visitPrintStmt(Statement.Print stmt) {
+			tag(PRINT);
+			write(stmt.expression);
+			return null;
+		}
+
+		@Override
+		public Void visitReturnStmt(Statement.Return stmt) {
+			tag(RETURN);
+			token(stmt.keyword);
+			write(stmt.value);
+			varint(stmt.isTailCall ? 1 : 0);
+			return null;
+		}
+
+		@Override
+		public Void visitVarStmt(Statement.Var stmt) {
+			tag(VAR);
+			token(stmt.name);
+			write(stmt.initializer);
+			varint(stmt.slot);
+			return null;
+		}
+
+		@Override
+		public Void visitForStmt(Statement.For stmt) {
+			tag(FOR);
+			write(stmt.initializer);
+			write(stmt.condition);
+			write(stmt.increment);
+			write(stmt.body);
+			varint(stmt.flat ? 1 : 0);
+			varint(stmt.scopeSize);
+			varint(stmt.counted ? 1 : 0);
+			if (stmt.counted) {
+				literal(stmt.step);
+				varint(stmt.observed ? 1 : 0);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStmt(Statement.While stmt) {
+			tag(WHILE);
+			write(stmt.condition);
+			write(stmt.body);
+			return null;
+		}
+
+		@Override
+		public Void visitAssignExpr(Expression.Assign expr) {
+			tag(ASSIGN);
+			token(expr.name);
+			write(expr.value);
+			resolution(expr);
+			return null;
+		}
+
+		@Override
+		public Void visitBinaryExpr(Expression.Binary expr) {
+			tag(BINARY);
+			write(expr.left);
+			token(expr.operator);
+			write(expr.right);
+			return null;
+		}
+
+		@Override
+		public Void visitCallExpr(Expression.Call expr) {
+			tag(CALL);
+			write(expr.callee);
+			token(expr.paren);
+			varint(expr.arguments.size());
+			for (Expression argument : expr.arguments) write(argument);
+			return null;
+		}
+
+		@Override
+		public Void visitGetExpr(Expression.Get expr) {
+			tag(GET);
+			write(expr.object);
+			token(expr.name);
+			return null;
+		}
+
+		@Override
+		public Void visitGroupingExpr(Expression.Grouping expr) {
+			tag(GROUPING);
+			write(expr.expression);
+			return null;
+		}
+
+		@Override
+		public Void visitLiteralExpr(Expression.Literal expr) {
+			tag(LITERAL);
+			literal(expr.value);
+			return null;
+		}
+
+		@Override
+		public Void visitLogicalExpr(Expression.Logical expr) {
+			tag(LOGICAL);
+			write(expr.left);
+			token(expr.operator);
+			write(expr.right);
+			return null;
+		}
+
+		@Override
+		public Void visitSetExpr(Expression.Set expr) {
+			tag(SET);
+			write(expr.object);
+			token(expr.name);
+			write(expr.value);
+			return null;
+		}
+
+		@Override
+		public Void visitSuperExpr(Expression.Super expr) {
+			tag(SUPER);
+			token(expr.keyword);
+			token(expr.method);
+			resolution(expr);
+			return null;
+		}
+
+		@Override
+		public Void visitThisExpr(Expression.This expr) {
+			tag(THIS);
+			token(expr.keyword);
+			resolution(expr);
+			return null;
+		}
+
+		@Override
+		public Void visitUnaryExpr(Expression.Unary expr) {
+			tag(UNARY);
+			token(expr.operator);
+			write(expr.right);
+			return null;
+		}
+
+		@Override
+		public Void visitVariableExpr(Expression.Variable expr) {
+			tag(VARIABLE);
+			token(expr.name);
+			resolution(expr);
+			return null;
+		}
+	}
+
+	private static final class Reader {
+		private static final TokenType[] TYPES = TokenType.values();
+
+		private final DataInputStream in;
+		private final List<Token> tokens = new ArrayList<>();
+		private final List<String> strings = new ArrayList<>();
+		private int line = 0;
+
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		boolean header(byte[] hash) throws IOException {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+			byte[] cached = new byte[hash.length];
+			in.readFully(cached);
+			return Arrays.equals(cached, hash);
+		}
+
+		private int varint() throws IOException {
+			int bits = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = in.readUnsignedByte();
+				bits |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) break;
+			}
+			return (bits >>> 1) ^ -(bits & 1);
+		}
+
+		private String string() throws IOException {
+			int index = varint();
+			if (index >= 0) return strings.get(index);
+
+			byte[] bytes = new byte[varint()];
+			in.readFully(bytes);
+			String string = new String(bytes, StandardCharsets.UTF_8);
+			strings.add(string);
+			return string;
+		}
+
+		private Token token() throws IOException {
+			int index = varint();
+			if (index >= 0) return tokens.get(index);
+
+			TokenType type = TYPES[varint()];
+			String lexeme = string();
+			Object literal = hasLiteral(type) ? literal() : null;
+			line += varint();
+			Token token = type == TokenType.IDENTIFIER
+					? new Token(type, Symbol.of(lexeme), line)
+					: new Token(type, lexeme, literal, line);
+			tokens.add(token);
+			return token;
+		}
+
+		private List<Token> tokenList() throws IOException {
+			int size = varint();
+			List<Token> list = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) list.add(token());
+			return list;
+		}
+
+		private Object literal() throws IOException {
+			switch (varint()) {
+			case NIL: return null;
+			case FALSE: return false;
+			case TRUE: return true;
+			case NUMBER: return in.readDouble();
+			case INTEGER: return (double) varint();
+			case STRING: return string();
+			default: throw new IOException("Bad literal.");
+			}
+		}
+
+		List<Statement> statements() throws IOException {
+			int size = varint();
+			List<Statement> statements = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) statements.add(statement());
+			return statements;
+		}
+
+		private List<Statement.Function> functions() throws IOException {
+			int size = varint();
+			List<Statement.Function> functions = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				functions.add((Statement.Function) statement());
+			}
+			return functions;
+		}
+
+		private Statement statement() throws IOException {
+			switch (varint()) {
+			case NONE:
+				return null;
+			case BLOCK: {
+				Statement.Block block = new Statement.Block(statements());
+				block.scopeSize = varint();
+				block.flat = varint() != 0;
+				return block;
+			}
+			case CLASS: {
+				Token name = token();
+				Expression.Variable superclass = (Expression.Variable) expression();
+				Statement.Class klass = new Statement.Class(name, superclass, functions());
+				klass.slot = varint();
+				return klass;
+			}
+			case EXPRESSION:
+				return new Statement.Expression(expression());
+			case FUNCTION: {
+				Token name = token();
+				List<Token> params = tokenList();
+				Statement.Function function = new Statement.Function(name, params, statements());
+				function.slot = varint();
+				function.scopeSize = varint();
+				return function;
+			}
+			case IF: {
+				Expression condition = expression();
+				Statement thenBranch = statement();
+				return new Statement.If(condition, thenBranch, statement());
+			}
+			case PRINT:
+				return new Statement.Print(expression());
+			case RETURN: {
+				Token keyword = token();
+				Statement.Return ret = new Statement.Return(keyword, expression());
+				ret.isTailCall = varint() != 0;
+				return ret;
+			}
+			case VAR: {
+				Token name = token();
+				Statement.Var var = new Statement.Var(name, expression());
+				var.slot = varint();
+				return var;
+			}
+			case WHILE: {
+				Expression condition = expression();
+				return new Statement.While(condition, statement());
+			}
+			case FOR: {
+				Statement initializer = statement();
+				Expression condition = expression();
+				Expression increment = expression();
+				Statement.For loop = new Statement.For(initializer, condition,
+						increment, statement());
+				loop.flat = varint() != 0;
+				loop.scopeSize = varint();
+				loop.counted = varint() != 0;
+				if (loop.counted) {
+					loop.step = (Double) literal();
+					loop.observed = varint() != 0;
+				}
+				return loop;
+			}
+			default:
+				throw new IOException("Bad statement.");
+			}
+		}
+
+		private Expression expression() throws IOException {
+			switch (varint()) {
+			case NONE:
+				return null;
+			case ASSIGN: {
+				Token name = token();
+				return resolved(new Expression.Assign(name, expression()));
+			}
+			case BINARY: {
+				Expression left = expression();
+				Token operator = token();
+				return new Expression.Binary(left, operator, expression());
+			}
+			case CALL: {
+				Expression callee = expression();
+				Token paren = token();
+				int size = varint();
+				List<Expression> arguments = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) arguments.add(expression());
+				return new Expression.Call(callee, paren, arguments);
+			}
+			case GET: {
+				Expression object = expression();
+				return new Expression.Get(object, token());
+			}
+			case GROUPING:
+				return new Expression.Grouping(expression());
+			case LITERAL:
+				return new Expression.Literal(literal());
+			case LOGICAL: {
+				Expression left = expression();
+				Token operator = token();
+				return new Expression.Logical(left, operator, expression());
+			}
+			case SET: {
+				Expression object = expression();
+				Token name = token();
+				return new Expression.Set(object, name, expression());
+			}
+			case SUPER: {
+				Token keyword = token();
+				return resolved(new Expression.Super(keyword, token()));
+			}
+			case THIS:
+				return resolved(new Expression.This(token()));
+			case UNARY: {
+				Token operator = token();
+				return new Expression.Unary(operator, expression());
+			}
+			case VARIABLE:
+				return resolved(new Expression.Variable(token()));
+			default:
+				throw new IOException("Bad expression.");
+			}
+		}
+
+		private Expression resolved(Expression.VariableAccess access) throws IOException {
+			access.depth = varint();
+			access.slot = varint();
+			return access;
+		}
+	}
+}
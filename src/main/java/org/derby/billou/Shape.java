@@ -0,0 +1,58 @@
+package org.derby.billou;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The field layout of an instance, shared by every instance of a
+ * class that was given the same fields in the same order. An instance
+ * starts with the empty shape of its class and moves to a child shape
+ * each time it gets a new field, so its values fit in a plain array
+ * indexed by the shape.
+ */
+class Shape {
+	private final Map<Symbol, Integer> indexes;
+	private final Map<Symbol, Shape> transitions = new HashMap<>();
+
+	/**
+	 * Creates the empty shape of a class
+	 */
+	Shape() {
+		this(new HashMap<>());
+	}
+
+	private Shape(Map<Symbol, Integer> indexes) {
+		this.indexes = indexes;
+	}
+
+	/**
+	 * @return where the field lives in an instance's values, or -1
+	 * if instances of this shape do not have it
+	 */
+	int indexOf(Symbol name) {
+		Integer index = indexes.get(name);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * Number of fields of instances of this shape
+	 */
+	int size() {
+		return indexes.size();
+	}
+
+	/**
+	 * @return the shape an instance of this shape moves to when it
+	 * gets a new field
+	 */
+	Shape with(Symbol name) {
+		Shape next = transitions.get(name);
+		if (next == null) {
+			Map<Symbol, Integer> nextIndexes = new HashMap<>(indexes);
+			nextIndexes.put(name, indexes.size());
+			next = new Shape(nextIndexes);
+			transitions.put(name, next);
+		}
+		return next;
+	}
+}
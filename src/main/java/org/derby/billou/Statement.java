@@ -12,6 +12,7 @@ abstract class Statement {
 		R visitBlockStmt(Block stmt);
 		R visitClassStmt(Class stmt);
 		R visitExpressionStmt(Expression stmt);
+		R visitForStmt(For stmt);
 		R visitFunctionStmt(Function stmt);
 		R visitIfStmt(If stmt);
 		R visitPrintStmt(Print stmt);
@@ -31,6 +32,11 @@ abstract class Statement {
 		}
 
 		final List<Statement> statements;
+		// number of slots the block's Env needs, set by the Resolver
+		int scopeSize;
+		// whether the block runs in the enclosing Env, its locals hoisted
+		// into it; scopeSize is then the number of slots that Env needs
+		boolean flat;
 	}
 
 	static class Class extends Statement {
@@ -50,6 +56,8 @@ abstract class Statement {
 		final Token name;
 		final org.derby.billou.Expression.Variable superclass;
 		final List<Statement.Function> methods;
+		// slot of the class name in its scope, -1 when global
+		int slot = -1;
 	}
 
 	static class Expression extends Statement {
@@ -65,11 +73,60 @@ abstract class Statement {
 		final org.derby.billou.Expression expression;
 	}
 
+	static class For extends Statement {
+		For(Statement initializer, org.derby.billou.Expression condition,
+				org.derby.billou.Expression increment, Statement body) {
+			this.initializer = initializer;
+			this.condition = condition;
+			this.increment = increment;
+			this.body = body;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitForStmt(this);
+		}
+
+		final Statement initializer;
+		final org.derby.billou.Expression condition;
+		final org.derby.billou.Expression increment;
+		final Statement body;
+		// a counted loop: its variable is stepped by a constant and
+		// compared with < or <= to a bound that does not change it
+		boolean counted;
+		double step;
+		// whether anything but the loop's own clauses reads the variable
+		boolean observed;
+		// whether the loop's variable lives in the enclosing Env
+		boolean flat;
+		// number of slots the loop's Env needs, with the locals of blocks
+		// flattened into it; when flat, the number the enclosing Env needs
+		int scopeSize;
+
+		/**
+		 * @return whether the loop has a scope of its own, for the
+		 * variable its initializer declares
+		 */
+		boolean declares() {
+			return initializer instanceof Var;
+		}
+	}
+
 	static class Function extends Statement {
 		Function(Token name, List<Token> params, List<Statement> body) {
 			this.name = name;
 			this.params = params;
 			this.body = body;
+			this.lazy = null;
+		}
+
+		/**
+		 * Constructs a function whose body is parsed on first use
+		 */
+		Function(Token name, List<Token> params, LazyBody lazy) {
+			this.name = name;
+			this.params = params;
+			this.lazy = lazy;
 		}
 
 		@Override
@@ -79,7 +136,25 @@ abstract class Statement {
 
 		final Token name;
 		final List<Token> params;
-		final List<Statement> body;
+		private List<Statement> body;
+		// the skipped tokens of a body not parsed yet, else null
+		final LazyBody lazy;
+		// slot of the function name in its scope, -1 when global
+		int slot = -1;
+		// number of parameters and locals declared directly in the body
+		int scopeSize;
+
+		/**
+		 * @return the body, parsed and resolved first if it was skipped
+		 */
+		List<Statement> body() {
+			if (body == null) body = lazy.compile(this);
+			return body;
+		}
+
+		boolean isParsed() {
+			return body != null;
+		}
 	}
 
 	static class If extends Statement {
@@ -125,6 +200,8 @@ abstract class Statement {
 
 		final Token keyword;
 		final org.derby.billou.Expression value;
+		// whether value is a call whose result is returned as is
+		boolean isTailCall;
 	}
 
 	static class Var extends Statement {
@@ -140,6 +217,8 @@ abstract class Statement {
 
 		final Token name;
 		final org.derby.billou.Expression initializer;
+		// slot of the variable in its scope, -1 when global
+		int slot = -1;
 	}
 
 	static class While extends Statement {
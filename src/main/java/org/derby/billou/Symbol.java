@@ -0,0 +1,96 @@
+package org.derby.billou;
+
+/**
+ * An interned identifier. The Scanner maps every identifier to the
+ * one Symbol of its name, so environments, shapes and method tables
+ * keyed by symbols hash a precomputed id and compare by identity.
+ *
+ * The table is open addressed and hashes names the way String does, so
+ * the Scanner can look a name up straight from its buffer and only
+ * makes a String the first time it sees one.
+ */
+final class Symbol {
+	private static Symbol[] table = new Symbol[1024];
+	private static int count = 0;
+
+	static final Symbol INIT = of("init");
+
+	final String name;
+	private final int id;
+	private final int hash;
+
+	private Symbol(String name, int id, int hash) {
+		this.name = name;
+		this.id = id;
+		this.hash = hash;
+	}
+
+	/**
+	 * @return the symbol for name, creating it the first time
+	 */
+	static synchronized Symbol of(String name) {
+		int hash = name.hashCode();
+		int mask = table.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			Symbol symbol = table[i];
+			if (symbol == null) return add(name, hash, i);
+			if (symbol.hash == hash && symbol.name.equals(name)) return symbol;
+		}
+	}
+
+	/**
+	 * @return the symbol for the name in chars[from, from + length)
+	 */
+	static synchronized Symbol of(char[] chars, int from, int length) {
+		int hash = 0;
+		for (int i = from; i < from + length; i++) hash = 31 * hash + chars[i];
+
+		int mask = table.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			Symbol symbol = table[i];
+			if (symbol == null) {
+				return add(new String(chars, from, length), hash, i);
+			}
+			if (symbol.hash == hash && symbol.matches(chars, from, length)) {
+				return symbol;
+			}
+		}
+	}
+
+	private boolean matches(char[] chars, int from, int length) {
+		if (name.length() != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (name.charAt(i) != chars[from + i]) return false;
+		}
+		return true;
+	}
+
+	private static Symbol add(String name, int hash, int index) {
+		Symbol symbol = new Symbol(name, count++, hash);
+		table[index] = symbol;
+
+		// kept at most half full, so probes stay short
+		if (count * 2 > table.length) {
+			Symbol[] old = table;
+			table = new Symbol[old.length * 2];
+			int mask = table.length - 1;
+			for (Symbol entry : old) {
+				if (entry == null) continue;
+				int i = entry.hash & mask;
+				while (table[i] != null) i = (i + 1) & mask;
+				table[i] = entry;
+			}
+		}
+		return symbol;
+	}
+
+	@Override
+	public int hashCode() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
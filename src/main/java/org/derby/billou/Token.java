@@ -5,25 +5,51 @@ package org.derby.billou;
  */
 public class Token {
 	final TokenType type; // the type of token
-	final String lexeme; // the actual char in the line
+	private String lexeme; // the actual chars, made on first use if need be
 	final Object literal;  //number or string
 	final int line; // the line in which the token is found
+	final Symbol symbol; // the interned name of an identifier, else null
 
 	/**
 	 * Constructs a token object
 	 * @param type
-	 * @param lexeme
+	 * @param lexeme or null to rebuild it from the type or, for a
+	 * string, the value, so the Scanner needn't copy it out
 	 * @param literal
 	 * @param line
 	 */
 	Token(TokenType type, String lexeme, Object literal, int line) {
+		this(type, lexeme, literal, line, null);
+	}
+
+	/**
+	 * Constructs an identifier token
+	 * @param symbol the interned name, whose string becomes the lexeme
+	 */
+	Token(TokenType type, Symbol symbol, int line) {
+		this(type, symbol.name, null, line, symbol);
+	}
+
+	private Token(TokenType type, String lexeme, Object literal, int line,
+			Symbol symbol) {
 		this.type = type;
 		this.lexeme = lexeme;
 		this.literal = literal;
 		this.line = line;
+		this.symbol = symbol;
+	}
+
+	/**
+	 * @return the chars of the source this token was scanned from
+	 */
+	String lexeme() {
+		if (lexeme == null) {
+			lexeme = type == TokenType.STRING ? "\"" + literal + "\"" : type.text;
+		}
+		return lexeme;
 	}
 
 	public String toString() {
-		return type + " " + lexeme + " " + literal;
+		return type + " " + lexeme() + " " + literal;
 	}
 }
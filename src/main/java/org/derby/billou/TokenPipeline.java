@@ -0,0 +1,127 @@
+package org.derby.billou;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a Scanner on a thread of its own, ahead of the parser, so that
+ * scanning a large script overlaps parsing it. Tokens are handed over
+ * in batches through a bounded queue, which keeps the scanner at most
+ * a few thousand tokens ahead and lets each batch become garbage once
+ * the parser is through it.
+ *
+ * Scan errors are held back until the parser reaches the token they
+ * came before, so they are reported in the same order as when the
+ * parser pulls from the Scanner itself.
+ */
+final class TokenPipeline implements Iterator<Token> {
+	private static final int BATCH = 1024;
+	private static final int BATCHES = 16;
+
+	private static final class ScanError {
+		final int index; // of the token it came before
+		final int line;
+		final String message;
+
+		ScanError(int index, int line, String message) {
+			this.index = index;
+			this.line = line;
+			this.message = message;
+		}
+	}
+
+	private static final class Batch {
+		final Token[] tokens = new Token[BATCH];
+		int size = 0;
+		final List<ScanError> errors = new ArrayList<>();
+		// what stopped the scan, if it failed
+		RuntimeException failure;
+	}
+
+	private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(BATCHES);
+
+	// the batch the scanner thread is filling
+	private Batch filling = new Batch();
+
+	// the batch the parser is reading, and where it is in it
+	private Batch batch;
+	private int index = 0;
+	private int error = 0;
+	private boolean done = false;
+
+	TokenPipeline(Scanner scanner) {
+		scanner.reportErrorsTo((line, message) ->
+				filling.errors.add(new ScanError(filling.size, line, message)));
+
+		Thread thread = new Thread(() -> scan(scanner), "billou-scanner");
+		// a parser that gives up early leaves it blocked on a full queue
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void scan(Scanner scanner) {
+		try {
+			while (scanner.hasNext()) {
+				// scanning it may report errors, which need the index it gets
+				Token token = scanner.next();
+				filling.tokens[filling.size++] = token;
+				if (filling.size == BATCH && scanner.hasNext()) {
+					queue.put(filling);
+					filling = new Batch();
+				}
+			}
+		} catch (RuntimeException e) {
+			filling.failure = e;
+		} catch (InterruptedException e) {
+			return;
+		}
+
+		try {
+			queue.put(filling);
+		} catch (InterruptedException e) {
+			// nobody is left to read it
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !done;
+	}
+
+	@Override
+	public Token next() {
+		if (done) throw new NoSuchElementException();
+
+		if (batch == null || (index == batch.size && batch.failure == null)) {
+			batch = take();
+			index = 0;
+			error = 0;
+		}
+
+		while (error < batch.errors.size() && batch.errors.get(error).index == index) {
+			ScanError scanError = batch.errors.get(error++);
+			Billou.error(scanError.line, scanError.message);
+		}
+
+		if (index == batch.size) throw batch.failure;
+
+		Token token = batch.tokens[index];
+		// the parser holds on to the tokens it needs
+		batch.tokens[index++] = null;
+		if (token.type == TokenType.EOF) done = true;
+		return token;
+	}
+
+	private Batch take() {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while parsing.", e);
+		}
+	}
+}
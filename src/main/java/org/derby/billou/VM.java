@@ -0,0 +1,614 @@
+package org.derby.billou;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Executes bytecode produced by the Compiler on a value stack.
+ * Each Billou call gets a CallFrame whose locals start at
+ * the frame's base slot on the shared stack.
+ */
+class VM {
+	static final int DEFAULT_MAX_FRAMES = 1 << 16;
+
+	/**
+	 * The storage of one global variable. Instructions naming a
+	 * global resolve it to its cell once and keep the cell in the
+	 * chunk's globalCache, so later accesses skip the map lookup.
+	 */
+	static final class Global {
+		final String name;
+		Object value;
+		boolean defined = false;
+
+		Global(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class CallFrame {
+		VmClosure closure;
+		int ip;
+		int base;
+	}
+
+	/**
+	 * Raised inside the dispatch loop; the loop attaches
+	 * the source line of the failing instruction
+	 */
+	private static class VmError extends RuntimeException {
+		VmError(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	private Object[] stack = new Object[256];
+	private int sp = 0;
+
+	// frames live here rather than on the Java stack, so the deepest
+	// recursion allowed is only bounded by maxFrames and the heap
+	private CallFrame[] frames = new CallFrame[64];
+	private int frameCount = 0;
+	private int maxFrames = DEFAULT_MAX_FRAMES;
+
+	private final Map<String, Global> globals = new HashMap<>();
+
+	// open upvalues ordered by descending stack slot
+	private VmUpvalue openUpvalues = null;
+
+	VM() {
+		Global clock = global("clock");
+		clock.value = new VmNative(0) {
+			@Override
+			Object call(Object[] args, int first) {
+				return (double)System.currentTimeMillis() / 1000.0;
+			}
+		};
+		clock.defined = true;
+	}
+
+	/**
+	 * Sets how many calls deep a program may go before it fails
+	 * with a stack overflow
+	 */
+	void setMaxDepth(int depth) {
+		// the script runs in a frame of its own, which is not a call
+		maxFrames = depth + 1;
+	}
+
+	void interpret(VmFunction script) {
+		VmClosure closure = new VmClosure(script);
+		push(closure);
+
+		try {
+			call(closure, 0);
+			run();
+		} catch (RuntimeError error) {
+			Billou.runtimeError(error);
+		}
+	}
+
+	private void run() {
+		CallFrame frame = frames[frameCount - 1];
+		byte[] code = frame.closure.function.chunk.code;
+		Object[] constants = frame.closure.function.chunk.constants;
+		int base = frame.base;
+		int ip = frame.ip;
+
+		try {
+			for (;;) {
+				switch (code[ip++]) {
+				case OpCode.CONSTANT: {
+					int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+					ip += 2;
+					push(constants[index]);
+					break;
+				}
+				case OpCode.NIL: push(null); break;
+				case OpCode.TRUE: push(true); break;
+				case OpCode.FALSE: push(false); break;
+				case OpCode.POP: sp--; break;
+				case OpCode.GET_LOCAL:
+					push(stack[base + (code[ip++] & 0xff)]);
+					break;
+				case OpCode.SET_LOCAL:
+					stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+					break;
+				case OpCode.GET_GLOBAL: {
+					Global global = global(frame.closure.function.chunk,
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+					ip += 2;
+					if (!global.defined) {
+						throw new VmError("Undefined variable '" + global.name + "'.");
+					}
+					push(global.value);
+					break;
+				}
+				case OpCode.DEFINE_GLOBAL: {
+					Global global = global(frame.closure.function.chunk,
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+					ip += 2;
+					global.value = stack[--sp];
+					global.defined = true;
+					break;
+				}
+				case OpCode.SET_GLOBAL: {
+					Global global = global(frame.closure.function.chunk,
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+					ip += 2;
+					if (!global.defined) {
+						throw new VmError("Undefined variable '" + global.name + "'.");
+					}
+					global.value = stack[sp - 1];
+					break;
+				}
+				case OpCode.GET_UPVALUE: {
+					VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+					push(upvalue.location >= 0 ? stack[upvalue.location] : upvalue.closed);
+					break;
+				}
+				case OpCode.SET_UPVALUE: {
+					VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+					if (upvalue.location >= 0) {
+						stack[upvalue.location] = stack[sp - 1];
+					} else {
+						upvalue.closed = stack[sp - 1];
+					}
+					break;
+				}
+				case OpCode.GET_PROPERTY: {
+					String name = (String) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					ip += 2;
+					if (!(stack[sp - 1] instanceof VmInstance)) {
+						throw new VmError("Only instances have properties.");
+					}
+
+					VmInstance instance = (VmInstance) stack[sp - 1];
+					Object value = instance.fields.get(name);
+					if (value != null || instance.fields.containsKey(name)) {
+						stack[sp - 1] = value;
+					} else {
+						stack[sp - 1] = bindMethod(instance, instance.klass, name);
+					}
+					break;
+				}
+				case OpCode.SET_PROPERTY: {
+					String name = (String) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					ip += 2;
+					if (!(stack[sp - 2] instanceof VmInstance)) {
+						throw new VmError("Only instances have fields.");
+					}
+
+					Object value = stack[--sp];
+					((VmInstance) stack[sp - 1]).fields.put(name, value);
+					stack[sp - 1] = value;
+					break;
+				}
+				case OpCode.GET_SUPER: {
+					String name = (String) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					ip += 2;
+					VmClass superclass = (VmClass) stack[--sp];
+					stack[sp - 1] = bindMethod(stack[sp - 1], superclass, name);
+					break;
+				}
+				case OpCode.EQUAL: {
+					Object b = stack[--sp];
+					stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+					break;
+				}
+				case OpCode.NOT_EQUAL: {
+					Object b = stack[--sp];
+					stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+					break;
+				}
+				case OpCode.GREATER: {
+					checkNumberOperands();
+					double b = (double) stack[--sp];
+					stack[sp - 1] = (double) stack[sp - 1] > b;
+					break;
+				}
+				case OpCode.GREATER_EQUAL: {
+					checkNumberOperands();
+					double b = (double) stack[--sp];
+					stack[sp - 1] = (double) stack[sp - 1] >= b;
+					break;
+				}
+				case OpCode.LESS: {
+					checkNumberOperands();
+					double b = (double) stack[--sp];
+					stack[sp - 1] = (double) stack[sp - 1] < b;
+					break;
+				}
+				case OpCode.LESS_EQUAL: {
+					checkNumberOperands();
+					double b = (double) stack[--sp];
+					stack[sp - 1] = (double) stack[sp - 1] <= b;
+					break;
+				}
+				case OpCode.ADD: {
+					Object b = stack[--sp];
+					Object a = stack[sp - 1];
+					if (a instanceof Double && b instanceof Double) {
+						stack[sp - 1] = (double) a + (double) b;
+					} else if (a instanceof String && b instanceof String) {
+						stack[sp - 1] = (String) a + (String) b;
+					} else {
+						throw new VmError(
+								"Operands must be two numbers or two strings.");
+					}
+					break;
+				}
+				case OpCode.SUBTRACT: {
+					checkNumberOperands();
+					double b = (double) stack[--sp];
+					stack[sp - 1] = (double) stack[sp - 1] - b;
+					break;
+				}
+				case OpCode.MULTIPLY: {
+					checkNumberOperands();
+					double b = (double) stack[--sp];
+					stack[sp - 1] = (double) stack[sp - 1] * b;
+					break;
+				}
+				case OpCode.DIVIDE: {
+					checkNumberOperands();
+					double b = (double) stack[--sp];
+					stack[sp - 1] = (double) stack[sp - 1] / b;
+					break;
+				}
+				case OpCode.NOT:
+					stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+					break;
+				case OpCode.NEGATE:
+					if (!(stack[sp - 1] instanceof Double)) {
+						throw new VmError("Operand must be a number.");
+					}
+					stack[sp - 1] = -(double) stack[sp - 1];
+					break;
+				case OpCode.PRINT:
+					System.out.println(Interpreter.stringify(stack[--sp]));
+					break;
+				case OpCode.JUMP: {
+					int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+					ip += 2 + offset;
+					break;
+				}
+				case OpCode.JUMP_IF_FALSE: {
+					int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+					ip += 2;
+					if (!Interpreter.isTruthy(stack[sp - 1])) ip += offset;
+					break;
+				}
+				case OpCode.LOOP: {
+					int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+					ip += 2 - offset;
+					break;
+				}
+				case OpCode.CALL: {
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					callValue(stack[sp - argCount - 1], argCount);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.base;
+					ip = frame.ip;
+					break;
+				}
+				case OpCode.TAIL_CALL: {
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					int callee = sp - argCount - 1;
+					if (stack[callee] instanceof VmClosure &&
+							((VmClosure) stack[callee]).function.arity == argCount) {
+						// the callee takes over this frame, so a chain of
+						// tail calls runs in constant space
+						closeUpvalues(base);
+						System.arraycopy(stack, callee, stack, base, argCount + 1);
+						Arrays.fill(stack, base + argCount + 1, sp, null);
+						sp = base + argCount + 1;
+						frameCount--;
+					}
+					callValue(stack[sp - argCount - 1], argCount);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.base;
+					ip = frame.ip;
+					break;
+				}
+				case OpCode.INVOKE: {
+					String name = (String) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					int argCount = code[ip + 2] & 0xff;
+					ip += 3;
+					frame.ip = ip;
+					invoke(name, argCount);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.base;
+					ip = frame.ip;
+					break;
+				}
+				case OpCode.SUPER_INVOKE: {
+					String name = (String) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					int argCount = code[ip + 2] & 0xff;
+					ip += 3;
+					frame.ip = ip;
+					VmClass superclass = (VmClass) stack[--sp];
+					invokeFromClass(superclass, name, argCount);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.base;
+					ip = frame.ip;
+					break;
+				}
+				case OpCode.CLOSURE: {
+					VmFunction function = (VmFunction) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					ip += 2;
+					VmClosure closure = new VmClosure(function);
+					push(closure);
+
+					for (int i = 0; i < closure.upvalues.length; i++) {
+						boolean isLocal = code[ip++] == 1;
+						int index = code[ip++] & 0xff;
+						if (isLocal) {
+							closure.upvalues[i] = captureUpvalue(base + index);
+						} else {
+							closure.upvalues[i] = frame.closure.upvalues[index];
+						}
+					}
+					break;
+				}
+				case OpCode.CLOSE_UPVALUE:
+					closeUpvalues(sp - 1);
+					sp--;
+					break;
+				case OpCode.RETURN: {
+					Object result = stack[--sp];
+					closeUpvalues(base);
+					frameCount--;
+					if (frameCount == 0) {
+						resetStack();
+						return;
+					}
+
+					Arrays.fill(stack, base, sp, null);
+					sp = base;
+					push(result);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.base;
+					ip = frame.ip;
+					break;
+				}
+				case OpCode.CLASS: {
+					String name = (String) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					ip += 2;
+					push(new VmClass(name));
+					break;
+				}
+				case OpCode.INHERIT: {
+					if (!(stack[sp - 2] instanceof VmClass)) {
+						throw new VmError("Superclass must be a class.");
+					}
+
+					VmClass superclass = (VmClass) stack[sp - 2];
+					VmClass subclass = (VmClass) stack[sp - 1];
+					subclass.methods.putAll(superclass.methods);
+					sp--;
+					break;
+				}
+				case OpCode.METHOD: {
+					String name = (String) constants[
+							((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+					ip += 2;
+					VmClass klass = (VmClass) stack[sp - 2];
+					klass.methods.put(name, (VmClosure) stack[--sp]);
+					break;
+				}
+				}
+			}
+		} catch (VmError error) {
+			int line = frame.closure.function.chunk.lines[ip - 1];
+			resetStack();
+			throw new RuntimeError(line, error.getMessage());
+		}
+	}
+
+	/**
+	 * Finds the cell of the global named by a constant,
+	 * caching it in the chunk for the next access
+	 */
+	private Global global(Chunk chunk, int constant) {
+		Global[] cache = chunk.globalCache;
+		if (cache == null || cache.length < chunk.constantCount) {
+			cache = cache == null ? new Global[chunk.constantCount]
+					: Arrays.copyOf(cache, chunk.constantCount);
+			chunk.globalCache = cache;
+		}
+
+		Global global = cache[constant];
+		if (global == null) {
+			global = global((String) chunk.constants[constant]);
+			cache[constant] = global;
+		}
+		return global;
+	}
+
+	private Global global(String name) {
+		Global global = globals.get(name);
+		if (global == null) {
+			global = new Global(name);
+			globals.put(name, global);
+		}
+		return global;
+	}
+
+	private void push(Object value) {
+		if (sp == stack.length) {
+			stack = Arrays.copyOf(stack, sp * 2);
+		}
+		stack[sp++] = value;
+	}
+
+	private void resetStack() {
+		Arrays.fill(stack, 0, sp, null);
+		sp = 0;
+		frameCount = 0;
+		openUpvalues = null;
+	}
+
+	private void checkNumberOperands() {
+		if (stack[sp - 2] instanceof Double && stack[sp - 1] instanceof Double) return;
+		throw new VmError("Operands must be numbers.");
+	}
+
+	private void callValue(Object callee, int argCount) {
+		if (callee instanceof VmClosure) {
+			call((VmClosure) callee, argCount);
+			return;
+		}
+
+		if (callee instanceof VmBoundMethod) {
+			VmBoundMethod bound = (VmBoundMethod) callee;
+			stack[sp - argCount - 1] = bound.receiver;
+			call(bound.method, argCount);
+			return;
+		}
+
+		if (callee instanceof VmClass) {
+			VmClass klass = (VmClass) callee;
+			stack[sp - argCount - 1] = new VmInstance(klass);
+
+			VmClosure initializer = klass.methods.get("init");
+			if (initializer != null) {
+				call(initializer, argCount);
+			} else if (argCount != 0) {
+				throw new VmError("Expected 0 arguments but got " +
+						argCount + ".");
+			}
+			return;
+		}
+
+		if (callee instanceof VmNative) {
+			VmNative function = (VmNative) callee;
+			if (argCount != function.arity) {
+				throw new VmError("Expected " + function.arity +
+						" arguments but got " + argCount + ".");
+			}
+
+			Object result = function.call(stack, sp - argCount);
+			sp -= argCount + 1;
+			push(result);
+			return;
+		}
+
+		throw new VmError("Can only call functions and classes.");
+	}
+
+	private void call(VmClosure closure, int argCount) {
+		if (argCount != closure.function.arity) {
+			throw new VmError("Expected " + closure.function.arity +
+					" arguments but got " + argCount + ".");
+		}
+
+		if (frameCount == maxFrames) {
+			throw new VmError("Stack overflow.");
+		}
+
+		if (frameCount == frames.length) {
+			frames = Arrays.copyOf(frames, frameCount * 2);
+		}
+
+		CallFrame frame = frames[frameCount];
+		if (frame == null) {
+			frame = new CallFrame();
+			frames[frameCount] = frame;
+		}
+
+		frame.closure = closure;
+		frame.ip = 0;
+		frame.base = sp - argCount - 1;
+		frameCount++;
+	}
+
+	private void invoke(String name, int argCount) {
+		Object receiver = stack[sp - argCount - 1];
+		if (!(receiver instanceof VmInstance)) {
+			throw new VmError("Only instances have properties.");
+		}
+
+		VmInstance instance = (VmInstance) receiver;
+		Object value = instance.fields.get(name);
+		if (value != null || instance.fields.containsKey(name)) {
+			stack[sp - argCount - 1] = value;
+			callValue(value, argCount);
+			return;
+		}
+
+		invokeFromClass(instance.klass, name, argCount);
+	}
+
+	private void invokeFromClass(VmClass klass, String name, int argCount) {
+		VmClosure method = klass.methods.get(name);
+		if (method == null) {
+			throw new VmError("Undefined property '" + name + "'.");
+		}
+
+		call(method, argCount);
+	}
+
+	private VmBoundMethod bindMethod(Object receiver, VmClass klass, String name) {
+		VmClosure method = klass.methods.get(name);
+		if (method == null) {
+			throw new VmError("Undefined property '" + name + "'.");
+		}
+
+		return new VmBoundMethod(receiver, method);
+	}
+
+	private VmUpvalue captureUpvalue(int location) {
+		VmUpvalue previous = null;
+		VmUpvalue upvalue = openUpvalues;
+		while (upvalue != null && upvalue.location > location) {
+			previous = upvalue;
+			upvalue = upvalue.next;
+		}
+
+		if (upvalue != null && upvalue.location == location) return upvalue;
+
+		VmUpvalue created = new VmUpvalue(location, upvalue);
+		if (previous == null) {
+			openUpvalues = created;
+		} else {
+			previous.next = created;
+		}
+
+		return created;
+	}
+
+	private void closeUpvalues(int last) {
+		while (openUpvalues != null && openUpvalues.location >= last) {
+			VmUpvalue upvalue = openUpvalues;
+			upvalue.closed = stack[upvalue.location];
+			upvalue.location = -1;
+			openUpvalues = upvalue.next;
+		}
+	}
+}
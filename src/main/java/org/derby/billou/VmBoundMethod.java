@@ -0,0 +1,20 @@
+package org.derby.billou;
+
+/**
+ * A method that was read off an instance
+ * and remembers its receiver
+ */
+class VmBoundMethod {
+	final Object receiver;
+	final VmClosure method;
+
+	VmBoundMethod(Object receiver, VmClosure method) {
+		this.receiver = receiver;
+		this.method = method;
+	}
+
+	@Override
+	public String toString() {
+		return method.toString();
+	}
+}
@@ -0,0 +1,18 @@
+package org.derby.billou;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+	final String name;
+	final Map<String, VmClosure> methods = new HashMap<>();
+
+	VmClass(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
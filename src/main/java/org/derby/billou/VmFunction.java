@@ -0,0 +1,23 @@
+package org.derby.billou;
+
+/**
+ * A function compiled to bytecode. The top-level
+ * script is compiled into a function with no name.
+ */
+class VmFunction {
+	final String name;
+	final int arity;
+	int upvalueCount = 0;
+	final Chunk chunk = new Chunk();
+
+	VmFunction(String name, int arity) {
+		this.name = name;
+		this.arity = arity;
+	}
+
+	@Override
+	public String toString() {
+		if (name == null) return "<script>";
+		return "<fn " + name + ">";
+	}
+}
@@ -0,0 +1,25 @@
+package org.derby.billou;
+
+/**
+ * A function implemented in Java that
+ * scripts running on the VM can call
+ */
+abstract class VmNative {
+	final int arity;
+
+	VmNative(int arity) {
+		this.arity = arity;
+	}
+
+	/**
+	 * @param args the VM stack
+	 * @param first index of the first argument on the stack
+	 * @return the result of the call
+	 */
+	abstract Object call(Object[] args, int first);
+
+	@Override
+	public String toString() {
+		return "<native fn>";
+	}
+}
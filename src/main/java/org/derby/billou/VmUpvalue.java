@@ -0,0 +1,20 @@
+package org.derby.billou;
+
+/**
+ * A variable captured by a closure. While the variable is still
+ * on the VM stack the upvalue points at its stack slot; once the
+ * variable goes out of scope the value moves into the upvalue.
+ */
+class VmUpvalue {
+	// stack slot of the captured variable, -1 once closed
+	int location;
+	Object closed;
+
+	// next open upvalue, ordered by descending stack slot
+	VmUpvalue next;
+
+	VmUpvalue(int location, VmUpvalue next) {
+		this.location = location;
+		this.next = next;
+	}
+}
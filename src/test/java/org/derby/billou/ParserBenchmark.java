@@ -0,0 +1,50 @@
+package org.derby.billou;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Measures how many top-level statements a second the Parser builds
+ * trees for, scanning included. It reports the best of several
+ * passes over a generated 16 MB script, or over the script given.
+ *
+ * mvn -B -q test-compile
+ * java -cp target/classes:target/test-classes org.derby.billou.ParserBenchmark [script]
+ */
+final class ParserBenchmark {
+	private static final long SIZE = 16L << 20;
+	private static final int PASSES = 10;
+
+	public static void main(String[] args) throws IOException {
+		Path script;
+		if (args.length > 0) {
+			script = Paths.get(args[0]);
+		} else {
+			script = Files.createTempFile("parser", ".bl");
+			script.toFile().deleteOnExit();
+			ScriptGenerator.write(script, SIZE, 1);
+		}
+
+		double best = Double.MAX_VALUE;
+		int statements = 0;
+		for (int pass = 0; pass < PASSES; pass++) {
+			// keep the last pass's trees out of this one's time
+			System.gc();
+			long start = System.nanoTime();
+			List<Statement> parsed = new Parser(new Scanner(script)).parse();
+			best = Math.min(best, (System.nanoTime() - start) / 1e9);
+			statements = parsed.size();
+
+			if (Billou.hadError) {
+				System.err.println("The script has syntax errors.");
+				System.exit(65);
+			}
+		}
+
+		System.out.printf("%d statements in %.1f MB: %.3fs, %.0f statements/s%n",
+				statements, Files.size(script) / 1e6, best, statements / best);
+	}
+}
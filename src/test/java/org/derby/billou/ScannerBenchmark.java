@@ -0,0 +1,47 @@
+package org.derby.billou;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Measures how fast the Scanner turns a script into tokens, in MB/s.
+ * It reports the best of several passes over a generated 64 MB
+ * script, or over the script given.
+ *
+ * mvn -B -q test-compile
+ * java -cp target/classes:target/test-classes org.derby.billou.ScannerBenchmark [script]
+ */
+final class ScannerBenchmark {
+	private static final long SIZE = 64L << 20;
+	private static final int PASSES = 7;
+
+	public static void main(String[] args) throws IOException {
+		Path script;
+		if (args.length > 0) {
+			script = Paths.get(args[0]);
+		} else {
+			script = Files.createTempFile("scanner", ".bl");
+			script.toFile().deleteOnExit();
+			ScriptGenerator.write(script, SIZE, 1);
+		}
+
+		double megabytes = Files.size(script) / 1e6;
+		double best = Double.MAX_VALUE;
+		long tokens = 0;
+		for (int pass = 0; pass < PASSES; pass++) {
+			long start = System.nanoTime();
+			Scanner scanner = new Scanner(script);
+			tokens = 0;
+			while (scanner.hasNext()) {
+				scanner.next();
+				tokens++;
+			}
+			best = Math.min(best, (System.nanoTime() - start) / 1e9);
+		}
+
+		System.out.printf("%d tokens in %.1f MB: %.3fs, %.1f MB/s%n",
+				tokens, megabytes, best, megabytes / best);
+	}
+}
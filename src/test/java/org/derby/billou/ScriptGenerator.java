@@ -0,0 +1,197 @@
+package org.derby.billou;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes large scripts for the front end benchmarks to read. They
+ * mix declarations, control flow, comments and expressions of every
+ * precedence, and parse without errors but are not meant to run.
+ * A given seed always gives the same script.
+ */
+final class ScriptGenerator {
+	private static final String[] BINARY = {
+			"or", "and", "==", "!=", "<", "<=", ">", ">=", "+", "-", "*", "/"
+	};
+	private static final String[] WORDS = {
+			"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta"
+	};
+
+	private final Random random;
+	private final StringBuilder line = new StringBuilder();
+	private int functions = 0;
+	private int classes = 0;
+
+	private ScriptGenerator(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Writes top-level statements to a file until it holds at least
+	 * the given number of characters
+	 * @return the number of top-level statements written
+	 */
+	static int write(Path file, long size, long seed) throws IOException {
+		ScriptGenerator generator = new ScriptGenerator(seed);
+		int statements = 0;
+		long written = 0;
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			while (written < size) {
+				generator.line.setLength(0);
+				generator.topLevel();
+				generator.line.append('\n');
+				out.append(generator.line);
+				written += generator.line.length();
+				statements++;
+			}
+		}
+		return statements;
+	}
+
+	private void topLevel() {
+		int kind = random.nextInt(20);
+		if (kind == 0) {
+			function();
+		} else if (kind == 1) {
+			klass();
+		} else if (kind == 2) {
+			line.append("// ").append(word()).append(' ').append(word()).append('\n');
+			statement(0, true);
+		} else {
+			statement(0, true);
+		}
+	}
+
+	private void function() {
+		line.append("fun f").append(functions++).append("(a, b) {\n")
+				.append("\tvar t = ");
+		expression(2);
+		line.append(";\n\tif (");
+		expression(1);
+		line.append(") return t;\n\tfor (var i = 0; i < b; i = i + 1) ");
+		statement(1, false);
+		line.append("\n\treturn ");
+		expression(2);
+		line.append(";\n}");
+	}
+
+	private void klass() {
+		line.append("class C").append(classes);
+		if (classes > 0) line.append(" < C").append(classes - 1);
+		classes++;
+		line.append(" {\n\tinit(x) { this.x = x; }\n\tm(y) { return this.x + ");
+		expression(1);
+		line.append("; }\n}");
+	}
+
+	/**
+	 * @param declaration whether a variable may be declared here,
+	 * rather than only in a block
+	 */
+	private void statement(int depth, boolean declaration) {
+		int kind = random.nextInt(depth < 2 ? 8 : 5);
+		if (kind == 0 && !declaration) kind = 1;
+		switch (kind) {
+		case 0:
+			line.append("var v").append(random.nextInt(100)).append(" = ");
+			expression(3);
+			line.append(';');
+			break;
+		case 1:
+			line.append("print ");
+			expression(3);
+			line.append(';');
+			break;
+		case 2:
+			line.append("a = ");
+			expression(3);
+			line.append(';');
+			break;
+		case 3:
+			line.append("o.x = ");
+			expression(2);
+			line.append(';');
+			break;
+		case 4:
+			expression(3);
+			line.append(';');
+			break;
+		case 5:
+			line.append("if (");
+			expression(2);
+			line.append(") ");
+			statement(depth + 1, false);
+			line.append(" else ");
+			statement(depth + 1, false);
+			break;
+		case 6:
+			line.append("while (");
+			expression(2);
+			line.append(") ");
+			statement(depth + 1, false);
+			break;
+		default:
+			line.append("{ ");
+			statement(depth + 1, true);
+			line.append(' ');
+			statement(depth + 1, true);
+			line.append(" }");
+		}
+	}
+
+	private void expression(int depth) {
+		if (depth == 0 || random.nextInt(3) == 0) {
+			primary();
+			return;
+		}
+
+		switch (random.nextInt(6)) {
+		case 0:
+			line.append(random.nextBoolean() ? '-' : '!');
+			expression(depth - 1);
+			break;
+		case 1:
+			line.append('(');
+			expression(depth - 1);
+			line.append(')');
+			break;
+		default:
+			expression(depth - 1);
+			line.append(' ').append(BINARY[random.nextInt(BINARY.length)]).append(' ');
+			expression(depth - 1);
+		}
+	}
+
+	private void primary() {
+		switch (random.nextInt(9)) {
+		case 0:
+			line.append(random.nextInt(1000));
+			break;
+		case 1:
+			line.append(random.nextInt(100)).append('.').append(random.nextInt(100));
+			break;
+		case 2:
+			line.append('"').append(word()).append(' ').append(word()).append('"');
+			break;
+		case 3:
+			line.append(random.nextBoolean() ? "true" : random.nextBoolean() ? "false" : "nil");
+			break;
+		case 4:
+			line.append("f(a, ").append(random.nextInt(10)).append(')');
+			break;
+		case 5:
+			line.append("o.x");
+			break;
+		default:
+			line.append((char) ('a' + random.nextInt(3)));
+		}
+	}
+
+	private String word() {
+		return WORDS[random.nextInt(WORDS.length)];
+	}
+}
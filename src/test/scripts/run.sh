@@ -0,0 +1,95 @@
+#!/bin/bash
+# Runs the scripts in this directory on every backend and compares
+# what each prints, and its exit status, with <script>.expected.
+#
+# A script can narrow the modes it runs in, or give extra flags, in
+# comments of its own:
+#   // modes: tree lazy cache
+#   // flags: --max-depth 1000
+#
+# usage: run.sh [--update] [script.bl...]
+#   --update  rewrites the expected output from the first mode a
+#             script runs in, instead of comparing
+# The classes under test are compiled with maven into target/classes,
+# unless BILLOU_CLASSES names others.
+
+MODES="tree vm jit ssa lazy cache"
+
+here=$(cd "$(dirname "$0")" && pwd)
+root=$(cd "$here/../../.." && pwd)
+
+update=0
+if [ "$1" == "--update" ]; then
+	update=1
+	shift
+fi
+
+classes=$BILLOU_CLASSES
+if [ -z "$classes" ]; then
+	(cd "$root" && mvn -B -q compile) || exit 1
+	classes=$root/target/classes
+fi
+
+scripts=("$@")
+if [ ${#scripts[@]} -eq 0 ]; then
+	scripts=("$here"/*.bl)
+fi
+
+# scripts run from here, so that --cache leaves nothing in the tree
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+# prints what a run shows on the console, then its exit status
+billou() {
+	java -cp "$classes" org.derby.billou.Billou "$@" 2>&1
+	echo "exit $?"
+}
+
+# runs a script in one mode; --cache runs twice, storing then loading
+run() {
+	local mode=$1 flags=$2 script=$3
+	case $mode in
+	tree) billou $flags "$script" ;;
+	cache)
+		rm -f "$script.cache"
+		local stored
+		stored=$(billou --cache $flags "$script")
+		echo "$stored"
+		if [ -f "$script.cache" ] && [ "$(billou --cache $flags "$script")" != "$stored" ]; then
+			echo "(differs when loaded from the cache)"
+		fi
+		;;
+	*) billou --$mode $flags "$script" ;;
+	esac
+}
+
+failed=0
+ran=0
+for script in "${scripts[@]}"; do
+	name=$(basename "$script" .bl)
+	expected=$(dirname "$script")/$name.expected
+	modes=$(sed -n 's|^// modes: ||p' "$script")
+	flags=$(sed -n 's|^// flags: ||p' "$script")
+	cp "$script" "$work/$name.bl"
+
+	for mode in ${modes:-$MODES}; do
+		actual=$(run "$mode" "$flags" "$work/$name.bl")
+		if [ $update -eq 1 ]; then
+			echo "$actual" > "$expected"
+			echo "updated $name"
+			break
+		fi
+
+		ran=$((ran + 1))
+		if [ "$actual" != "$(cat "$expected" 2>/dev/null)" ]; then
+			failed=$((failed + 1))
+			echo "FAIL $name ($mode)"
+			diff <(cat "$expected" 2>/dev/null) <(echo "$actual") | head -20
+		fi
+	done
+done
+
+if [ $update -eq 0 ]; then
+	echo "$((ran - failed)) of $ran runs passed"
+fi
+[ $failed -eq 0 ]